@@ -0,0 +1,242 @@
+package commandpcr;
+
+import insilicopcr.BlastResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Reads BLAST tabular rows straight from the bytes of blastn's output. Each row is split into field offsets within one
+// reused buffer, only the numeric columns the filter needs are parsed, and the primer column is looked up as bytes in a
+// PrimerIndex, so a row costs no allocation at all unless it passes the filter and becomes a BlastResult. Rows are expected
+// in the column order of CommandMethods.blastHeader.
+public class BlastRowReader {
+
+	private static final int fields = 15;
+	private static final byte[] lineSeparator = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+
+	// Every primer ID with a dense index and the primer's length, looked up by the bytes of the ID
+	public static class PrimerIndex {
+
+		private String[] ids;
+		private byte[][] idBytes;
+		private int[] lengths;
+		private int[] table;
+
+		public PrimerIndex(HashMap<String, String> primerDict) {
+			ids = primerDict.keySet().toArray(new String[primerDict.size()]);
+			idBytes = new byte[ids.length][];
+			lengths = new int[ids.length];
+			int size = 16;
+			while(size < ids.length * 2) {
+				size <<= 1;
+			}
+			table = new int[size];
+			Arrays.fill(table, -1);
+			for(int i = 0; i < ids.length; i++) {
+				idBytes[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+				lengths[i] = primerDict.get(ids[i]).length();
+				int slot = hash(idBytes[i], 0, idBytes[i].length) & (size - 1);
+				while(table[slot] != -1) {
+					slot = (slot + 1) & (size - 1);
+				}
+				table[slot] = i;
+			}
+		}
+
+		private static int hash(byte[] bytes, int start, int end) {
+			int h = 0;
+			for(int i = start; i < end; i++) {
+				h = 31 * h + bytes[i];
+			}
+			return h ^ (h >>> 16);
+		}
+
+		// The index of the primer whose ID is the bytes from start to end, or -1 if there is none
+		public int find(byte[] bytes, int start, int end) {
+			int mask = table.length - 1;
+			int slot = hash(bytes, start, end) & mask;
+			int index;
+			while((index = table[slot]) != -1) {
+				if(Arrays.equals(idBytes[index], 0, idBytes[index].length, bytes, start, end)) {
+					return index;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		public String getID(int index) {
+			return ids[index];
+		}
+
+		public int getLength(int index) {
+			return lengths[index];
+		}
+	}
+
+	private InputStream in;
+	private PrimerIndex primers;
+	private byte[] buffer = new byte[1 << 16];
+	private int position = 0;
+	private int limit = 0;
+	private boolean finished = false;
+	private int lineStart;
+	private int lineEnd;
+	private int[] starts = new int[fields];
+	private int[] ends = new int[fields];
+
+	public BlastRowReader(InputStream in, PrimerIndex primers) {
+		this.in = in;
+		this.primers = primers;
+	}
+
+	// Move to the next row with all its fields, skipping blank lines and the header. Returns false at the end of the output
+	public boolean next() throws IOException {
+		while(true) {
+			int newline = -1;
+			while(true) {
+				for(int i = position; i < limit; i++) {
+					if(buffer[i] == '\n') {
+						newline = i;
+						break;
+					}
+				}
+				if(newline >= 0 || !fill()) {
+					break;
+				}
+			}
+			if(newline < 0) {
+				if(position == limit) {
+					return false;
+				}
+				// A last row without a newline
+				newline = limit;
+			}
+			lineStart = position;
+			lineEnd = newline > lineStart && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+			position = Math.min(newline + 1, limit);
+			if(lineEnd == lineStart || startsWith("qseqid")) {
+				continue;
+			}
+			if(split()) {
+				return true;
+			}
+		}
+	}
+
+	// Keep the unread bytes, growing the buffer if they fill it, and read more after them. False once the stream is done
+	private boolean fill() throws IOException {
+		if(finished) {
+			return false;
+		}
+		if(position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if(limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int n = in.read(buffer, limit, buffer.length - limit);
+		if(n <= 0) {
+			finished = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	private boolean startsWith(String prefix) {
+		if(lineEnd - lineStart < prefix.length()) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length(); i++) {
+			if(buffer[lineStart + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean split() {
+		int field = 0;
+		starts[0] = lineStart;
+		for(int i = lineStart; i < lineEnd && field < fields; i++) {
+			if(buffer[i] == '\t') {
+				ends[field++] = i;
+				if(field < fields) {
+					starts[field] = i + 1;
+				}
+			}
+		}
+		if(field < fields) {
+			ends[field++] = lineEnd;
+		}
+		return field == fields;
+	}
+
+	// For a batch query, take the <index>__ off the contig ID and return the index, or -1 if the ID has no such prefix
+	public int stripQueryPrefix() {
+		int index = 0;
+		int i = starts[0];
+		while(i < ends[0] && buffer[i] >= '0' && buffer[i] <= '9') {
+			index = index * 10 + (buffer[i] - '0');
+			i++;
+		}
+		int separator = QueryBatcher.separator.length();
+		if(i == starts[0] || i + separator > ends[0] || buffer[i] != '_' || buffer[i + 1] != '_') {
+			return -1;
+		}
+		starts[0] = i + separator;
+		return index;
+	}
+
+	public int getInt(int field) {
+		int i = starts[field];
+		boolean negative = i < ends[field] && buffer[i] == '-';
+		if(negative) {
+			i++;
+		}
+		int value = 0;
+		for(; i < ends[field]; i++) {
+			value = value * 10 + (buffer[i] - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	public String getString(int field) {
+		return new String(buffer, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+	}
+
+	// The dense index of the row's primer, or -1 if it is not a known primer
+	public int getPrimer() {
+		return primers.find(buffer, starts[1], ends[1]);
+	}
+
+	// Whether the primer aligned over its full length within the permitted mismatches, as parseBlastLine checks
+	public boolean passes(int mismatches) {
+		int primer = getPrimer();
+		return primer >= 0 && getInt(8) == primers.getLength(primer) && getInt(3) <= mismatches;
+	}
+
+	// The BlastResult of a row that passes
+	public BlastResult toResult(String sampleName) {
+		return new BlastResult(sampleName, getString(0), primers.getID(getPrimer()), getInt(3), getInt(9), getInt(10), getInt(8),
+				getString(14), getInt(12) > getInt(13));
+	}
+
+	// The row as a String, from the contig ID on
+	public String getLine() {
+		return new String(buffer, starts[0], lineEnd - starts[0], StandardCharsets.UTF_8);
+	}
+
+	// Copy the row's bytes, from the contig ID on, to the output followed by a line separator
+	public void writeRow(OutputStream out) throws IOException {
+		out.write(buffer, starts[0], lineEnd - starts[0]);
+		out.write(lineSeparator);
+	}
+}
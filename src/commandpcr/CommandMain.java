@@ -1,25 +1,43 @@
 package commandpcr;
 
-import insilicopcr.Find;
+import insilicopcr.Dependencies;
 import insilicopcr.Sample;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import dispatchpcr.Dispatcher;
 
 public class CommandMain {
 	
 	public static String sep = File.separator;
+	// Genomes at least this big are searched as a database of their own in auto orientation
+	private static final long largeGenome = 16 << 20;
+	// A database of a few hundred bases of primers leaves blastn little to split, so a search against it never takes more
+	private static final int primerDatabaseCores = 2;
 	private double memJava;
 	
 	private File inputFile = null, outDir = null, primerFile = null;
@@ -28,10 +46,33 @@ public class CommandMain {
 	private File BBToolsLocation, BLASTLocation, JavaLocation;
 	private String javaCall;
 	private int mismatches = 0;
+	private String searchEngine = "blast";
+	private int maxAmpliconLength = 10000;
+	private boolean writeDetailed = true;
+	private boolean inProcess = false;
+	private String baitEngine = "bbduk";
+	private String assembler = "tadpole";
+	private boolean readPairs = false;
+	private File cacheDir = null;
+	private ArrayList<File> panelFiles = null;
+	private String orientation = "primers";
+	private ArrayList<String> panels = new ArrayList<String>();
 	private HashMap<String, String> primerDict = new HashMap<String, String>();
 	private HashMap<String, Sample> sampleDict = new HashMap<String, Sample>();
 	private boolean fastqPresent = false;
 	private ThreadPoolExecutor mainPool;
+	private CoreBudget coreBudget;
+	private MemoryBudget memoryBudget;
+	private InProcessBBTools inProcessBBTools;
+	private ReadBaiter readBaiter;
+	private TargetedAssembler targetedAssembler;
+	private ReadPairDetector readPairDetector;
+	private ResultCache resultCache;
+	private String runKey;
+	private QueryBatcher queryBatcher;
+	private BlastRowReader.PrimerIndex primerIndex;
+	private int batchCount = 0;
+	private ArrayList<String> failedSamples = new ArrayList<String>();
 	
 	public CommandMain(File inputFile, File outDir, File primerFile, int threads, int mismatches) {
 		this.inputFile = inputFile;
@@ -41,6 +82,73 @@ public class CommandMain {
 		this.mismatches = mismatches;
 	}
 	
+	// Either "blast" to search with blastn, or "native" to use the in-process PrimerSearch
+	public void setSearchEngine(String searchEngine) {
+		this.searchEngine = searchEngine;
+	}
+	
+	// Primer pairs further apart than this on a contig are not reported as a product
+	public void setMaxAmpliconLength(int maxAmpliconLength) {
+		this.maxAmpliconLength = maxAmpliconLength;
+	}
+	
+	// Whether the BLAST rows are also written to a .tsv per input in the detailed report
+	public void setWriteDetailed(boolean writeDetailed) {
+		this.writeDetailed = writeDetailed;
+	}
+	
+	// Whether BBDuk and Tadpole run inside this JVM rather than as a subprocess each
+	public void setInProcess(boolean inProcess) {
+		this.inProcess = inProcess;
+	}
+	
+	// Either "bbduk" to bait reads with BBDuk, or "native" to use the in-process ReadBaiter
+	public void setBaitEngine(String baitEngine) {
+		this.baitEngine = baitEngine;
+	}
+	
+	// Either "tadpole" for a full assembly of the baited reads, or "targeted" to assemble only around the primer sites
+	public void setAssembler(String assembler) {
+		this.assembler = assembler;
+	}
+	
+	// Whether fastq samples are screened straight from their read pairs, with no baiting, assembly or search
+	public void setReadPairs(boolean readPairs) {
+		this.readPairs = readPairs;
+	}
+	
+	// Several primer files screened in one pass, each written to a consolidated report of its own
+	public void setPanelFiles(ArrayList<File> panelFiles) {
+		this.panelFiles = panelFiles;
+	}
+	
+	// Which side of the BLAST search is the database. "primers" searches each genome against a database of the primers,
+	// "genome" builds a database of each genome and searches the primers against it on several threads, and "auto" does the
+	// latter for genomes of largeGenome or more
+	public void setOrientation(String orientation) {
+		this.orientation = orientation;
+	}
+	
+	// A directory of search results from earlier runs, reused for samples whose inputs, primers and settings are unchanged
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	// The directory holding tadpole.sh and bbduk.sh, instead of searching for it
+	public void setBBToolsLocation(File BBToolsLocation) {
+		this.BBToolsLocation = BBToolsLocation;
+	}
+	
+	// The directory holding blastn and makeblastdb, instead of searching for it
+	public void setBLASTLocation(File BLASTLocation) {
+		this.BLASTLocation = BLASTLocation;
+	}
+	
+	// The directory holding the java executable used to run BBTools, instead of searching for the bundled runtime
+	public void setJavaLocation(File JavaLocation) {
+		this.JavaLocation = JavaLocation;
+	}
+	
 	public void run() {
 		
 		if(System.getProperties().getProperty("os.name").contains("Windows")) {
@@ -71,7 +179,8 @@ public class CommandMain {
 				}
 				String fullOutput = String.join("",output);
 				String trimmedOutput = fullOutput.split("\\s+")[1];
-				memJava = Double.parseDouble(trimmedOutput) / 1000000000;
+				// MemTotal is in kB
+				memJava = Double.parseDouble(trimmedOutput) / 1000000;
 			}catch(IOException e) {
 				e.printStackTrace();
 			}
@@ -96,7 +205,8 @@ public class CommandMain {
 		consolidatedDir.mkdirs();
 	}
 	
-	// Find dependencies
+	// Find dependencies, from the locations given by the user, the environment, the dependency manifest, or as a last
+	// resort by walking the install tree
 	public void findDependencies() {
 		String codeLocation = Dispatcher.class.getProtectionDomain().getCodeSource().getLocation().getPath();
 		String codeParent = codeLocation;
@@ -107,56 +217,20 @@ public class CommandMain {
 		}
 		Path dir = Paths.get(codeParent);
 //		Path dir = new File("C:\\Users\\ChmaraJ\\Desktop").toPath();
-		Find.Finder finder = new Find.Finder("**bbmap", dir);
-		for(Path path: finder.run()) {
-			File directory = path.toFile();
-			for(File file : directory.listFiles()) {
-				if(file.getName().contains("tadpole.sh")) {
-					BBToolsLocation = path.toFile();
-				}
-			}
-		}
-		
-		Find.Finder finder2;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder2 = new Find.Finder("**makeblastdb.exe", dir);
-		}else {
-			finder2 = new Find.Finder("**makeblastdb", dir);
-		}
-		for(Path path : finder2.run()) {
-			File blastdbpath = path.toFile();
-			BLASTLocation = blastdbpath.getParentFile();
+		Dependencies dependencies = new Dependencies(dir);
+		dependencies.setOverride(Dependencies.bbtools, BBToolsLocation);
+		dependencies.setOverride(Dependencies.blast, BLASTLocation);
+		dependencies.setOverride(Dependencies.java, JavaLocation);
+		dependencies.readEnvironment();
+		if(dependencies.resolve()) {
+			System.out.println("Searched the install directory for dependencies");
 		}
+		BBToolsLocation = dependencies.getLocation(Dependencies.bbtools);
+		BLASTLocation = dependencies.getLocation(Dependencies.blast);
+		JavaLocation = dependencies.getLocation(Dependencies.java);
 		if(BBToolsLocation == null || BLASTLocation == null) {
 			System.out.println("BBToolsLocation or BLASTLocation is null");
 		}
-		
-		Find.Finder finder3;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder3 = new Find.Finder("**InSilicoPCR_windows_java_runtime", dir);
-		}else {
-			finder3 = new Find.Finder("**InSilicoPCR_linux_java_runtime", dir);
-		}
-		for(Path path : finder3.run()) {
-			File javapath = path.toFile();
-			if(javapath.isDirectory()) {
-				for(File item : javapath.listFiles()) {
-					if(item.isDirectory()) {
-						for(File item2 : item.listFiles()) {
-							if(System.getProperties().getProperty("os.name").contains("Windows")) {
-								if(item2.getName().equals("java.exe")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}else {
-								if(item2.getName().equals("java")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}
-						}
-					}
-				}
-			}
-		}
 		if(System.getProperties().getProperty("os.name").contains("Windows")) {
 			javaCall = JavaLocation.getAbsolutePath() + sep + "java.exe";
 		}else {
@@ -182,9 +256,32 @@ public class CommandMain {
 			System.out.println("Created Directories");
 			sampleDict = CommandMethods.createSampleDict(inputFile);
 			System.out.println("Created Sample Dictionary");
-			primerDict = CommandMethods.parseFastaToDictionary(primerFile);
+			if(panelFiles != null) {
+				// Every genome is searched once against all the panels together, then split up again for the reports
+				primerDict = CommandMethods.parsePanelsToDictionary(panelFiles, panels);
+			}else {
+				primerDict = CommandMethods.parseFastaToDictionary(primerFile);
+			}
 			System.out.println("Created Primer Dictionary");
-			CommandMethods.processPrimers(primerDict, outDir, sep);
+			PrimerDatabaseCache primerDatabaseCache = null;
+			boolean primerDatabaseCached = false;
+			if(searchEngine.equals("native")) {
+				// The native search matches degenerate bases itself, so only the primer file written for BBDuk is expanded
+				CommandMethods.processPrimers(new HashMap<String, String>(primerDict), outDir, sep);
+			}else {
+				// Kept in the cache directory only when one was given, otherwise the database is made in the output directory
+				if(cacheDir != null) {
+					primerDatabaseCache = new PrimerDatabaseCache(new File(cacheDir, "primer_db"), primerDict, BLASTLocation);
+					primerDatabaseCached = primerDatabaseCache.restore(outDir);
+				}
+				if(primerDatabaseCached) {
+					// The expanded primers are read back from the cached primer file, so they match its database
+					primerDict = CommandMethods.parseFastaToDictionary(new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"));
+					System.out.println("Reused cached primer database");
+				}else {
+					CommandMethods.processPrimers(primerDict, outDir, sep);
+				}
+			}
 			System.out.println("Finished Formatting Primers");
 			// Check if any fastq files are present
 			for(String key : sampleDict.keySet()) {
@@ -194,36 +291,31 @@ public class CommandMain {
 					break;
 				}
 			}
-			if(fastqPresent) {
-				runBaitTask();
-				System.out.println("Completed First Baiting");
-				runSecondBaitTask();
-				System.out.println("Completed Second Baiting");
-				runAssembleTask();
-				System.out.println("Completed Assembly");
-			}
-			if(!System.getProperty("os.name").contains("Windows")) {
-				CommandMethods.makeExecutable(BLASTLocation);
-			}
-			CommandMethods.makeBlastDB(new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"), BLASTLocation);
-			System.out.println("Completed Database Creation");
-			// If files were fastq, need to use the assembly file instead of raw files
-			runBLASTTask task = new runBLASTTask();
-			Thread t = new Thread(task);
-			t.setDaemon(true);
-			t.start();
-			try {
-				t.join();
-			}catch(InterruptedException e) {
-				e.printStackTrace();
+			if(searchEngine.equals("blast")) {
+				if(!System.getProperty("os.name").contains("Windows")) {
+					CommandMethods.makeExecutable(BLASTLocation);
+				}
+				if(!primerDatabaseCached) {
+					CommandMethods.makeBlastDB(new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"), BLASTLocation);
+					if(primerDatabaseCache != null) {
+						primerDatabaseCache.store(outDir);
+					}
+				}
+				System.out.println("Completed Database Creation");
 			}
-			System.out.println("Completed BLAST");
+			runSamplePipelines();
+			System.out.println("Completed Search");
 			CommandMethods.addContigDict(sampleDict);
-			CommandMethods.parseBlastOutput(consolidatedDir, detailedDir, primerDict, mismatches, sampleDict);
-			System.out.println("Parsed BLAST output");
-			CommandMethods.makeConsolidatedReport(consolidatedDir, sep, sampleDict, primerDict);
+			if(panels.isEmpty()) {
+				CommandMethods.makeConsolidatedReport(consolidatedDir, sep, sampleDict, primerDict, maxAmpliconLength);
+			}else {
+				for(String panel : panels) {
+					CommandMethods.makeConsolidatedReport(consolidatedDir, sep, sampleDict, primerDict, maxAmpliconLength, panel);
+				}
+			}
 			System.out.println("Created Consolidated Report");
-			CommandMethods.makeQALog(new File(outDir.getAbsolutePath() + sep + "QAlog.txt"), Dispatcher.version, outDir, inputFile, primerFile, BBToolsLocation, BLASTLocation);
+			CommandMethods.makeQALog(new File(outDir.getAbsolutePath() + sep + "QAlog.txt"), Dispatcher.version, outDir, inputFile, primerFile, BBToolsLocation, BLASTLocation,
+					coreBudget.getAllocations(), memoryBudget.getAllocations(), getFailedSamples());
 			
 			long endTime = System.nanoTime();
 			
@@ -231,78 +323,311 @@ public class CommandMain {
 		}
 	}
 	
-	//Method to make a thread to run the CountMatchTask to prevent UI from hanging
-	public void runBaitTask() {
-		BaitTask task = new BaitTask();
-		Thread t = new Thread(task);
-		t.setDaemon(true);
-		t.start();
-		try {
-			t.join();
-		}catch(InterruptedException e) {
-			e.printStackTrace();
+	// Every sample flows through its own chain of stages on one shared pool: baiting, second baiting and assembly for fastq,
+	// then the search, which also parses the hits into the sample. A sample's next stage is queued as soon as its last one
+	// finishes, so samples overlap each other's stages instead of every sample waiting at the end of each stage
+	public void runSamplePipelines() {
+		mainPool = new ThreadPoolExecutor(threads, threads, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		
+		// Every subprocess takes its threads from one budget of -t cores, so overlapping stages never oversubscribe
+		coreBudget = new CoreBudget(threads, sampleDict.size());
+		// and every BBTools heap from one budget of the machine's memory, so overlapping stages never run it out
+		memoryBudget = new MemoryBudget(memJava);
+		// The native baiter, read pair detector and targeted assembler all find reads by the same primer k-mers
+		ReadBaiter primerKmers = null;
+		if(fastqPresent && (baitEngine.equals("native") || readPairs || assembler.equals("targeted"))) {
+			try {
+				primerKmers = new ReadBaiter(primerDict, mismatches);
+			}catch(IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				if(readPairs) {
+					System.out.println("Allow fewer mismatches with -m to screen read pairs");
+					System.exit(-1);
+				}
+				System.out.println("Baiting with BBDuk and assembling with Tadpole instead");
+				baitEngine = "bbduk";
+				assembler = "tadpole";
+			}
+		}
+		if(baitEngine.equals("native") && primerKmers != null) {
+			readBaiter = primerKmers;
+		}
+		if(readPairs && primerKmers != null) {
+			readPairDetector = new ReadPairDetector(primerDict, primerKmers, mismatches, maxAmpliconLength);
+		}
+		if(assembler.equals("targeted") && primerKmers != null) {
+			targetedAssembler = new TargetedAssembler(primerKmers, maxAmpliconLength);
+		}
+		if(inProcess && fastqPresent) {
+			inProcessBBTools = new InProcessBBTools(BBToolsLocation);
+			if(inProcessBBTools.isAvailable()) {
+				memoryBudget = MemoryBudget.forHostHeap();
+			}else {
+				inProcessBBTools = null;
+			}
+		}
+		
+		PrimerSearch primerSearch = null;
+		if(searchEngine.equals("native")) {
+			primerSearch = new PrimerSearch(primerDict, mismatches);
+		}
+		String readEngine = "bait=" + baitEngine + " assembler=" + assembler + " length=" + maxAmpliconLength;
+		if(cacheDir != null) {
+			resultCache = new ResultCache(cacheDir, primerDict, mismatches, "version=" + Dispatcher.version + " search=" + searchEngine,
+					readEngine);
+		}
+		if(searchEngine.equals("blast")) {
+			primerIndex = new BlastRowReader.PrimerIndex(primerDict);
+			// Small fasta files of different samples share blastn runs of about 16 MB of sequence
+			queryBatcher = new QueryBatcher(16 << 20, batch -> CompletableFuture.runAsync(new BlastBatchTask(batch), mainPool));
+			for(Sample sample : sampleDict.values()) {
+				if(sample.getFileType().equals("fasta")) {
+					queryBatcher.register(sample);
+				}
+			}
+		}
+		// The mismatches are part of every settings key, the orientation and detailed output only change what a search leaves
+		runKey = ResultCache.settingsKey(primerDict, mismatches, "version=" + Dispatcher.version + " search=" + searchEngine + " " + readEngine
+				+ " orientation=" + orientation + " detailed=" + writeDetailed);
+		ArrayList<CompletableFuture<Void>> pipelines = new ArrayList<CompletableFuture<Void>>();
+		for(String key : sampleDict.keySet()) {
+			Sample sample = sampleDict.get(key);
+			CompletableFuture<Void> pipeline = CompletableFuture.completedFuture(null);
+			if(readPairDetector != null && sample.getFileType().equals("fastq")) {
+				pipeline = pipeline.thenRunAsync(new ReadPairTask(sample), mainPool).handle((done, e) -> {
+					coreBudget.finishSample();
+					finishSample(sample, e);
+					return null;
+				});
+				pipelines.add(pipeline);
+				continue;
+			}
+			if(resultCache != null) {
+				// Content hashing reads every input, so the lookup is a stage on the pool like any other
+				PrimerSearch search = primerSearch;
+				pipeline = pipeline.thenApplyAsync(done -> resultCache.sampleKey(sample), mainPool).thenComposeAsync(sampleKey -> {
+					if(resultCache.load(sample, sampleKey)) {
+						System.out.println("Reused cached results for sample " + sample.getName());
+						return CompletableFuture.completedFuture(null);
+					}
+					// Every stage of a fastq or fasta sample fails its future on an error, so only whole results are stored
+					return searchStages(sample, search).thenRunAsync(() -> resultCache.store(sample, sampleKey, searchedFiles(sample)), mainPool);
+				}, mainPool);
+			}else {
+				pipeline = searchStages(sample, primerSearch);
+			}
+			pipeline = pipeline.handle((done, e) -> {
+				if(queryBatcher != null) {
+					queryBatcher.leave(sample);
+				}
+				coreBudget.finishSample();
+				finishSample(sample, e);
+				return null;
+			});
+			pipelines.add(pipeline);
+		}
+		CompletableFuture.allOf(pipelines.toArray(new CompletableFuture<?>[pipelines.size()])).join();
+		mainPool.shutdown();
+		if(resultCache != null) {
+			resultCache.close();
+		}
+		if(inProcessBBTools != null) {
+			inProcessBBTools.close();
 		}
 	}
 	
-	//Method to make a thread to run the SeconBaitTask to prevent UI from hanging
-	public void runSecondBaitTask() {
-		SecondBaitTask task = new SecondBaitTask();
-		Thread t = new Thread(task);
-		t.setDaemon(true);
-		t.start();
-		try {
-			t.join();
-		}catch(InterruptedException e) {
-			e.printStackTrace();
+	// Report the end of a sample's stages. A sample that failed is kept, marked as failed in the report and the QA log
+	private void finishSample(Sample sample, Throwable e) {
+		if(e == null) {
+			System.out.println("Completed sample " + sample.getName());
+			return;
 		}
+		e.printStackTrace();
+		sample.setFailed(true);
+		synchronized(failedSamples) {
+			failedSamples.add(sample.getName());
+		}
+		System.out.println("Failed sample " + sample.getName());
 	}
 	
-	//Method to make a thread to run the AssemblyTask to prevent UI from hanging
-	public void runAssembleTask() {
-		AssembleTask task = new AssembleTask();
-		Thread t = new Thread(task);
-		t.setDaemon(true);
-		t.start();
-		try {
-			t.join();
-		}catch(InterruptedException e) {
-			e.printStackTrace();
+	// The samples that failed one of their stages, found once run has returned
+	public ArrayList<String> getFailedSamples() {
+		synchronized(failedSamples) {
+			return new ArrayList<String>(failedSamples);
 		}
 	}
 	
-	public class runBLASTTask implements Runnable {
-		
-		public runBLASTTask() {
+	// Baiting, second baiting and assembly for a fastq sample, then the search of its assembly or fasta files. Each stage is
+	// journaled, so a rerun skips the stages that already finished over the same inputs
+	private CompletableFuture<Void> searchStages(Sample sample, PrimerSearch primerSearch) {
+		String sampleDir = detailedDir.getAbsolutePath() + sep + sample.getName();
+		new File(sampleDir).mkdirs();
+		String prefix = sampleDir + sep + sample.getName();
+		StageJournal journal = new StageJournal(new File(prefix + "_journal.properties"), runKey);
+		CompletableFuture<Void> stages = CompletableFuture.completedFuture(null);
+		if(sample.getFileType().equals("fastq")) {
+			if(readBaiter != null) {
+				// The native baiter recruits the second round in the same pass as the first
+				String baited = prefix + "_doubleTargetMatches.fastq";
+				stages = journaled(stages, journal, sample, "baiting", sample.getFiles(), list(baited), () -> sample.setBaitedFile(baited),
+						() -> CompletableFuture.runAsync(new BaitTask(sample), mainPool));
+			}else {
+				String firstBaited = prefix + "_targetMatches.fastq.gz";
+				String baited = prefix + "_doubleTargetMatches.fastq.gz";
+				stages = journaled(stages, journal, sample, "baiting", sample.getFiles(), list(firstBaited), () -> {},
+						() -> CompletableFuture.runAsync(new BaitTask(sample), mainPool));
+				ArrayList<String> inputs = new ArrayList<String>(sample.getFiles());
+				inputs.add(firstBaited);
+				stages = journaled(stages, journal, sample, "second baiting", inputs, list(baited), () -> sample.setBaitedFile(baited),
+						() -> CompletableFuture.runAsync(new SecondBaitTask(sample), mainPool));
+			}
+			String baited = prefix + (readBaiter != null ? "_doubleTargetMatches.fastq" : "_doubleTargetMatches.fastq.gz");
+			String assembly = prefix + "_assembly.fasta";
+			stages = journaled(stages, journal, sample, "assembly", list(baited), list(assembly), () -> sample.setAssemblyFile(assembly),
+					() -> CompletableFuture.runAsync(new AssembleTask(sample), mainPool));
 		}
-		
-		public void run() {
-			mainPool = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					BlastTask task = new BlastTask(outDir.getAbsolutePath() + sep + "primer_tmp.fasta", sampleDict.get(key).getAssemblyFile(),
-							detailedDir, sep, threads, BLASTLocation);
-					mainPool.submit(task);
-				}else {
-					for(String file : sampleDict.get(key).getFiles()) {
-						BlastTask task = new BlastTask(outDir.getAbsolutePath() + sep + "primer_tmp.fasta", file,
-								detailedDir, sep, threads, BLASTLocation);
-						mainPool.submit(task);
+		// The hits are kept beside the journal, so a finished search is read back rather than run again
+		String hits = prefix + "_hits.tsv";
+		return stages.thenComposeAsync(done -> journaled(CompletableFuture.completedFuture(null), journal, sample, "search", searchedFiles(sample),
+				list(hits), () -> {
+					try {
+						ResultCache.readResults(sample, new File(hits));
+					}catch(IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}, () -> search(sample, primerSearch).thenRunAsync(() -> {
+					try {
+						ResultCache.writeResults(sample, searchedFiles(sample), new File(hits));
+					}catch(IOException e) {
+						throw new UncheckedIOException(e);
 					}
+				}, mainPool)), mainPool);
+	}
+	
+	// Queue a stage after the previous one. If the journal shows it finished over the same inputs, it is not run, and restore
+	// only points the sample at the outputs it left, or the stage is run after all if those cannot be read back. A stage is
+	// only journaled once its work completed without an exception, so a failed stage is run again next time
+	private CompletableFuture<Void> journaled(CompletableFuture<Void> previous, StageJournal journal, Sample sample, String stage, 
+			ArrayList<String> inputs, ArrayList<String> outputs, Runnable restore, Supplier<CompletableFuture<Void>> work) {
+		return previous.thenComposeAsync(done -> {
+			if(journal.isComplete(stage, inputs, outputs)) {
+				try {
+					restore.run();
+					System.out.println("Reused finished " + stage + " of sample " + sample.getName());
+					return CompletableFuture.completedFuture(null);
+				}catch(RuntimeException e) {
+					e.printStackTrace();
 				}
 			}
+			return work.get().thenRun(() -> journal.complete(stage, inputs, outputs));
+		}, mainPool);
+	}
+	
+	// The search of a sample's fasta files, or its assembly if it was fastq
+	private CompletableFuture<Void> search(Sample sample, PrimerSearch primerSearch) {
+		if(primerSearch != null) {
+			// One task per sample, so that a sample with several files is never written to from two threads
+			return CompletableFuture.runAsync(new PrimerSearchTask(primerSearch, sample), mainPool);
+		}
+		// Each of a fasta sample's larger files is searched on its own, the small ones go to a batch shared with other samples,
+		// and the sample is done when all of them are
+		ArrayList<CompletableFuture<Void>> searches = new ArrayList<CompletableFuture<Void>>();
+		ArrayList<String> small = new ArrayList<String>();
+		for(String query : searchedFiles(sample)) {
+			boolean genomeDatabase = genomeDatabase(query);
+			if(!genomeDatabase && sample.getFileType().equals("fasta") && new File(query).length() < QueryBatcher.smallQuery) {
+				small.add(query);
+				continue;
+			}
+			searches.add(CompletableFuture.runAsync(new BlastTask(outDir.getAbsolutePath() + sep + "primer_tmp.fasta", 
+					query, sample, detailedDir, sep, BLASTLocation, genomeDatabase), mainPool));
+		}
+		if(!small.isEmpty()) {
+			searches.add(queryBatcher.add(sample, small));
+		}else if(sample.getFileType().equals("fasta")) {
+			queryBatcher.leave(sample);
+		}
+		return CompletableFuture.allOf(searches.toArray(new CompletableFuture<?>[searches.size()]));
+	}
+	
+	// Whether the query is better searched as a database of its own. A database of a few primers leaves blastn nothing to
+	// split over threads, while a genome database lets one search use all the cores it is granted. Below largeGenome the
+	// makeblastdb run costs more than the threads save, however few samples the run has
+	private boolean genomeDatabase(String query) {
+		if(orientation.equals("auto")) {
+			return new File(query).length() >= largeGenome;
+		}
+		return orientation.equals("genome");
+	}
+	
+	private static ArrayList<String> list(String file) {
+		ArrayList<String> files = new ArrayList<String>();
+		files.add(file);
+		return files;
+	}
+	
+	// The fasta files a sample's search runs over, its assembly if it is fastq
+	private static ArrayList<String> searchedFiles(Sample sample) {
+		ArrayList<String> files = new ArrayList<String>();
+		if(sample.getFileType().equals("fastq")) {
+			files.add(sample.getAssemblyFile());
+		}else {
+			files.addAll(sample.getFiles());
+		}
+		return files;
+	}
+	
+	// Run one BBTools program from BBToolsLocation once its heap fits in the memory budget and it has been given cores. The
+	// heap is sized from the input, and the thread count from the core budget is added to the arguments. In process mode the
+	// program runs on this thread, and only goes out to a subprocess if it could not be run here. BBTools sizes its tables
+	// from the whole heap it runs in, so in process a job holds all of it. A job that fails fails the sample's stage
+	public void runBBTools(String job, String program, int heapMB, ArrayList<String> arguments) {
+		int heap;
+		try {
+			heap = memoryBudget.acquire(job, inProcessBBTools != null ? Integer.MAX_VALUE : heapMB);
+		}catch(InterruptedException e) {
+			throw new IllegalStateException(job + " was interrupted", e);
+		}
+		try {
+			int cores;
 			try {
-				mainPool.shutdown();
-				mainPool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+				cores = coreBudget.acquire(job, Integer.MAX_VALUE);
 			}catch(InterruptedException e) {
-				e.printStackTrace();
+				throw new IllegalStateException(job + " was interrupted", e);
+			}
+			ArrayList<String> programArguments = new ArrayList<String>(arguments);
+			programArguments.add("threads=" + cores);
+			try {
+				if(inProcessBBTools != null && inProcessBBTools.run(program, programArguments)) {
+					return;
+				}
+				ArrayList<String> fullProcessCall = new ArrayList<String>();
+				fullProcessCall.add(javaCall);
+				fullProcessCall.add("-ea");
+				fullProcessCall.add("-Xmx" + Math.min(heap, heapMB) + "m");
+				fullProcessCall.add("-cp");
+				fullProcessCall.add("./current");
+				fullProcessCall.add(program);
+				fullProcessCall.addAll(programArguments);
+				Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
+				waitForProcess(p, job);
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
 			}
+		}finally {
+			memoryBudget.release(heap);
 		}
 	}
 	
-	// Bait FastQ reads from input files using BBDuk and the primer file as the target
+	// Bait FastQ reads from a sample's input files using BBDuk and the primer file as the target
 	public class BaitTask implements Runnable {
 		
-		public BaitTask() {
+		private Sample currentSample;
+		
+		public BaitTask(Sample currentSample) {
+			this.currentSample = currentSample;
 		}
 		
 		public void run() {
@@ -317,34 +642,44 @@ public class CommandMain {
 			
 			String ref = outDir.getAbsolutePath() + sep + "primer_tmp.fasta";
 			
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					
-					Sample currentSample = sampleDict.get(key);
-					File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
-					sampleDir.mkdirs();
-					String[] fullProcessCall;
-					if(currentSample.getFiles().size() == 2) {
-						fullProcessCall = new String[] {javaCall, "-ea", "-Xmx7g", "-cp", "./current", "jgi.BBDuk", "ref=" + ref, "k=" + klength,
-								"in1=" + currentSample.getFiles().get(0), "in2=" + currentSample.getFiles().get(1), "hdist=" + mismatches,
-								"threads=" + threads, "interleaved=t", "outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() +
-								"_targetMatches.fastq.gz"};
-					}else {
-						fullProcessCall = new String[] {javaCall, "-ea", "-Xmx7g", "-cp", "./current", "jgi.BBDuk", "ref=" + ref, "k=" + klength,
-								"in=" + currentSample.getFiles().get(0), "hdist=" + mismatches, "threads=" + threads, "interleaved=t",
-								"outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz"};
-					}
-					try {
-						Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
-						try {
-							p.waitFor();
-						}catch(InterruptedException e) {
-							e.printStackTrace();
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
-				}
+			File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
+			sampleDir.mkdirs();
+			if(readBaiter != null) {
+				baitNative(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq");
+				return;
+			}
+			ArrayList<String> arguments = new ArrayList<String>();
+			arguments.add("ref=" + ref);
+			arguments.add("k=" + klength);
+			if(currentSample.getFiles().size() == 2) {
+				arguments.add("in1=" + currentSample.getFiles().get(0));
+				arguments.add("in2=" + currentSample.getFiles().get(1));
+			}else {
+				arguments.add("in=" + currentSample.getFiles().get(0));
+			}
+			arguments.add("hdist=" + mismatches);
+			arguments.add("interleaved=t");
+			arguments.add("outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz");
+			
+			// BBDuk holds the reference k-mers, and every mismatch allowed multiplies them, the reads themselves are streamed
+			int heap = MemoryBudget.heapFor(MemoryBudget.inputSize(Collections.singletonList(ref)), 64 << (2 * mismatches));
+			runBBTools(currentSample.getName() + " baiting", "jgi.BBDuk", heap, arguments);
+		}
+		
+		private void baitNative(String out) {
+			int cores;
+			try {
+				cores = coreBudget.acquire(currentSample.getName() + " baiting", Integer.MAX_VALUE);
+			}catch(InterruptedException e) {
+				throw new IllegalStateException("The baiting of " + currentSample.getName() + " was interrupted", e);
+			}
+			try {
+				readBaiter.recruit(currentSample.getFiles(), out, cores);
+				currentSample.setBaitedFile(out);
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
 			}
 		}
 	}
@@ -354,130 +689,394 @@ public class CommandMain {
 	// Conducting mutations on query instead of reference? Dramatically reduces memory usage. 
 	public class SecondBaitTask implements Runnable {
 		
-		public SecondBaitTask() {
+		private Sample currentSample;
+		
+		public SecondBaitTask(Sample currentSample) {
+			this.currentSample = currentSample;
 		}
 		
 		public void run() {
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					Sample currentSample = sampleDict.get(key);
-					File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
-					String ref = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz";
-					String[] fullProcessCall;
-					if(currentSample.getFiles().size() == 2) {
-						fullProcessCall = new String[] {javaCall, "-ea", "-Xmx7g", "-cp", "./current", "jgi.BBDuk", "ref=" + ref, 
-								"in1=" + currentSample.getFiles().get(0), "in2=" + currentSample.getFiles().get(1), "hdist=" + mismatches,
-								"threads=" + threads, "interleaved=t", "outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() +
-								"_doubleTargetMatches.fastq.gz"};
-					}else {
-						fullProcessCall = new String[] {javaCall, "-ea", "-Xmx7g", "-cp", "./current", "jgi.BBDuk", "ref=" + ref,
-								"in=" + currentSample.getFiles().get(0), "hdist=" + mismatches, "threads=" + threads, "interleaved=t",
-								"outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz"};
-					}
-					try {
-						Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
-						try {
-							p.waitFor();
-						}catch(InterruptedException e) {
-							e.printStackTrace();
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
-				}
+			File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
+			String ref = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz";
+			ArrayList<String> arguments = new ArrayList<String>();
+			arguments.add("ref=" + ref);
+			if(currentSample.getFiles().size() == 2) {
+				arguments.add("in1=" + currentSample.getFiles().get(0));
+				arguments.add("in2=" + currentSample.getFiles().get(1));
+			}else {
+				arguments.add("in=" + currentSample.getFiles().get(0));
 			}
+			arguments.add("hdist=" + mismatches);
+			arguments.add("interleaved=t");
+			arguments.add("outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz");
+			currentSample.setBaitedFile(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz");
+			
+			int heap = MemoryBudget.heapFor(MemoryBudget.inputSize(Collections.singletonList(ref)), 64 << (2 * mismatches));
+			runBBTools(currentSample.getName() + " second baiting", "jgi.BBDuk", heap, arguments);
 		}
 	}
 	
 	// Assemble reads from both rounds of baiting to attempt to get long enough contigs to ensure as many primer hits are contained on the same contigs as possible
 	public class AssembleTask implements Runnable {
 		
-		public AssembleTask() {
+		private Sample currentSample;
+		
+		public AssembleTask(Sample currentSample) {
+			this.currentSample = currentSample;
 		}
 		
 		public void run() {
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					
-					Sample currentSample = sampleDict.get(key);
-					File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
-					
-					String in = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz";
-					String out = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_assembly.fasta";
-					
-					// Make sure that the sample contains a reference to its own assembly file
-					currentSample.setAssemblyFile(out);
-					
-					String[] fullProcessCall = {javaCall, "-ea", "-Xmx7g", "-cp", "./current", "assemble.Tadpole", 
-							"in=" + in, "out=" + out, "threads=" + threads};
-				
-					try {
-						Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
-						try {
-							p.waitFor();
-						}catch(InterruptedException e) {
-							e.printStackTrace();
+			File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
+			
+			String in = currentSample.getBaitedFile();
+			if(in == null) {
+				in = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz";
+			}
+			String out = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_assembly.fasta";
+			
+			// Make sure that the sample contains a reference to its own assembly file
+			currentSample.setAssemblyFile(out);
+			
+			if(targetedAssembler != null) {
+				assembleTargeted(in, out);
+				return;
+			}
+			ArrayList<String> arguments = new ArrayList<String>();
+			arguments.add("in=" + in);
+			arguments.add("out=" + out);
+			
+			// Tadpole keeps a count for every k-mer of its input
+			int heap = MemoryBudget.heapFor(MemoryBudget.inputSize(Collections.singletonList(in)), 16);
+			runBBTools(currentSample.getName() + " assembly", "assemble.Tadpole", heap, arguments);
+		}
+		
+		private void assembleTargeted(String in, String out) {
+			int cores;
+			try {
+				cores = coreBudget.acquire(currentSample.getName() + " assembly", 1);
+			}catch(InterruptedException e) {
+				throw new IllegalStateException("The assembly of " + currentSample.getName() + " was interrupted", e);
+			}
+			try {
+				targetedAssembler.assemble(in, out);
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
+			}
+		}
+	}
+	
+	// Count the read pairs of a fastq sample that show a product of each gene, without assembling them
+	public class ReadPairTask implements Runnable {
+		
+		private Sample sample;
+		
+		public ReadPairTask(Sample sample) {
+			this.sample = sample;
+		}
+		
+		public void run() {
+			int cores;
+			try {
+				cores = coreBudget.acquire(sample.getName() + " read pairs", Integer.MAX_VALUE);
+			}catch(InterruptedException e) {
+				throw new IllegalStateException("The read pair screen of " + sample.getName() + " was interrupted", e);
+			}
+			try {
+				sample.setAmpliconSupport(readPairDetector.detect(sample.getFiles(), cores));
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
+			}
+		}
+	}
+	
+	// Search the sample's fasta files, or its assembly if it was fastq, with the native primer search
+	public class PrimerSearchTask implements Runnable {
+		
+		private PrimerSearch primerSearch;
+		private Sample sample;
+		
+		public PrimerSearchTask(PrimerSearch primerSearch, Sample sample) {
+			this.primerSearch = primerSearch;
+			this.sample = sample;
+		}
+		
+		public void run() {
+			int cores;
+			try {
+				cores = coreBudget.acquire(sample.getName() + " native search", 1);
+			}catch(InterruptedException e) {
+				throw new IllegalStateException("The search of " + sample.getName() + " was interrupted", e);
+			}
+			try {
+				search();
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
+			}
+		}
+		
+		private void search() throws IOException {
+			if(sample.getFileType().equals("fastq")) {
+				ArrayList<String> assembly = new ArrayList<String>();
+				assembly.add(sample.getAssemblyFile());
+				primerSearch.searchSample(sample, assembly);
+			}else {
+				primerSearch.searchSample(sample, sample.getFiles());
+			}
+		}
+	}
+	
+	// Wait for a subprocess, failing its stage unless it exited cleanly, as its output may be cut short otherwise
+	private static void waitForProcess(Process p, String job) throws IOException {
+		int status;
+		try {
+			status = p.waitFor();
+		}catch(InterruptedException e) {
+			p.destroy();
+			throw new IOException(job + " was interrupted", e);
+		}
+		if(status != 0) {
+			throw new IOException(job + " exited with status " + status);
+		}
+	}
+	
+	// The name of a query's folder and .tsv in the detailed report
+	private static String reportName(String query) {
+		File file = new File(query);
+		String name = file.getName().split("_assembly\\.fasta")[0];
+		name = name.split("\\.fasta")[0];
+		name = name.split("\\.fna")[0];
+		name = name.split("\\.ffn")[0];
+		return name;
+	}
+	
+	// Search a batch of small fasta files, from any number of samples, with one blastn. The files are written out as one
+	// query with every contig renamed <index>__<contig>, index being the file's place in the batch, and each row of the
+	// output is put back to its own contig, file and sample as it is parsed
+	public class BlastBatchTask implements Runnable {
+		
+		private ArrayList<QueryBatcher.Query> batch;
+		
+		public BlastBatchTask(ArrayList<QueryBatcher.Query> batch) {
+			this.batch = batch;
+		}
+		
+		public void run() {
+			int number;
+			synchronized(CommandMain.this) {
+				number = batchCount++;
+			}
+			File batchQuery = new File(outDir.getAbsolutePath() + sep + "blast_batch_" + number + ".fasta");
+			try {
+				writeBatchQuery(batchQuery);
+			}catch(IOException e) {
+				throw new UncheckedIOException("Could not write the query of batch " + number, e);
+			}
+			int cores;
+			try {
+				cores = coreBudget.acquire("batch " + number + " blastn", primerDatabaseCores);
+			}catch(InterruptedException e) {
+				throw new IllegalStateException("Batch " + number + " was interrupted", e);
+			}
+			String primers = outDir.getAbsolutePath() + sep + "primer_tmp.fasta";
+			String[] windowsFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn.exe", "-task", "blastn-short", "-query",
+					batchQuery.getAbsolutePath(), "-db", primers, "-evalue", "1e-1", "-num_alignments", "1000000", "-num_threads", 
+					Integer.toString(cores), "-outfmt", "6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq"};
+			String[] linuxFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn", "-task", "blastn-short", "-query",
+					batchQuery.getAbsolutePath(), "-db", primers, "-evalue", "1e-1", "-num_alignments", "1000000", "-num_threads", 
+					Integer.toString(cores), "-outfmt", "6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq"};
+			ProcessBuilder builder;
+			if(System.getProperty("os.name").contains("Windows")) {
+				builder = new ProcessBuilder(windowsFullProcessCall);
+			}else {
+				builder = new ProcessBuilder(linuxFullProcessCall);
+			}
+			builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+			// The detailed rows of each file, written out once the batch is done
+			ByteArrayOutputStream[] detailed = new ByteArrayOutputStream[batch.size()];
+			for(int i = 0; i < detailed.length; i++) {
+				detailed[i] = new ByteArrayOutputStream();
+			}
+			try {
+				Process p = builder.start();
+				try(InputStream in = p.getInputStream()){
+					BlastRowReader reader = new BlastRowReader(in, primerIndex);
+					while(reader.next()) {
+						int index = reader.stripQueryPrefix();
+						if(index < 0) {
+							continue;
 						}
+						if(writeDetailed) {
+							reader.writeRow(detailed[index]);
+						}
+						if(reader.passes(mismatches)) {
+							Sample sample = batch.get(index).getSample();
+							sample.putBlastResult(primerIndex.getID(reader.getPrimer()), reader.toResult(sample.getName()));
+						}
+					}
+				}
+				waitForProcess(p, "blastn of batch " + number);
+			}catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
+				batchQuery.delete();
+			}
+			if(writeDetailed) {
+				for(int i = 0; i < batch.size(); i++) {
+					String name = reportName(batch.get(i).getFile());
+					File blastOutput = new File(detailedDir.getAbsolutePath() + sep + name);
+					blastOutput.mkdirs();
+					try(OutputStream out = new FileOutputStream(new File(blastOutput.getAbsolutePath() + sep + name + ".tsv"))){
+						out.write((CommandMethods.blastHeader + System.getProperty("line.separator")).getBytes(StandardCharsets.UTF_8));
+						detailed[i].writeTo(out);
 					}catch(IOException e) {
 						e.printStackTrace();
 					}
-					
+				}
+			}
+		}
+		
+		private void writeBatchQuery(File batchQuery) throws IOException {
+			String line;
+			try(BufferedWriter writer = new BufferedWriter(new FileWriter(batchQuery))){
+				for(int i = 0; i < batch.size(); i++) {
+					try(BufferedReader reader = new BufferedReader(new FileReader(batch.get(i).getFile()))){
+						while((line = reader.readLine()) != null) {
+							if(line.startsWith(">")) {
+								writer.write(">" + i + QueryBatcher.separator + line.substring(1));
+							}else {
+								writer.write(line);
+							}
+							writer.write("\n");
+						}
+					}
 				}
 			}
 		}
 	}
 	
-	// Run Blast on the provided primers and query, calls addHeaderToTSV on the resulting .tsv file
+	// Run Blast on the provided primers and query, reading the rows straight from blastn's output as they are produced.
+	// Rows that pass the length and mismatch filter go into the sample, and every row is copied to the detailed .tsv,
+	// header first, unless the detailed output was turned off. Rows are tokenized as bytes by a BlastRowReader, so only
+	// the rows that pass become Strings
 	public class BlastTask implements Runnable {
 		
 		private String primers;
 		private String query;
+		private Sample sample;
 		private File detailedDir;
 		private String sep;
 		private File BLASTLocation;
+		private boolean genomeDatabase;
 		
-		public BlastTask(String primers, String query, File detailedDir, String sep, int threads, File BLASTLocation) {
+		public BlastTask(String primers, String query, Sample sample, File detailedDir, String sep, File BLASTLocation) {
+			this(primers, query, sample, detailedDir, sep, BLASTLocation, false);
+		}
+		
+		// With genomeDatabase, the query is made into a temporary database, removed once searched, and the primers are
+		// searched against it
+		public BlastTask(String primers, String query, Sample sample, File detailedDir, String sep, File BLASTLocation,
+				boolean genomeDatabase) {
 			this.primers = primers;
 			this.query = query;
+			this.sample = sample;
 			this.detailedDir = detailedDir;
 			this.sep = sep;
 			this.BLASTLocation = BLASTLocation;
+			this.genomeDatabase = genomeDatabase;
 		}
 		
 		public void run() {
 			
-			File file = new File(query);
-			String name = file.getName().split("_assembly\\.fasta")[0];
-			name = name.split("\\.fasta")[0];
-			name = name.split("\\.fna")[0];
-			name = name.split("\\.ffn")[0];
+			String name = reportName(query);
 			File blastOutput = new File(detailedDir.getAbsolutePath() + sep + name);
 			blastOutput.mkdirs();
 			File blastTSV = new File(blastOutput.getAbsolutePath() + sep + name + ".tsv");
-			String[] windowsFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn.exe", "-task", "blastn-short", "-query",
-					query, "-db", primers, "-evalue", "1e-1", "-num_alignments", "1000000", "-num_threads", "1", "-outfmt", 
-					"6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq",
-					"-out", blastTSV.getAbsolutePath()};
-			String[] linuxFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn", "-task", "blastn-short", "-query",
-					query, "-db", primers, "-evalue", "1e-1", "-num_alignments", "1000000", "-num_threads", "1", "-outfmt", 
-					"6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq",
-					"-out", blastTSV.getAbsolutePath()};
+			int cores;
 			try {
-				Process p;
+				cores = coreBudget.acquire(name + " blastn", genomeDatabase ? Integer.MAX_VALUE : primerDatabaseCores);
+			}catch(InterruptedException e) {
+				throw new IllegalStateException("The search of " + name + " was interrupted", e);
+			}
+			String blastQuery = query;
+			String database = primers;
+			String format = "6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq";
+			File databaseDir = null;
+			try {
+				if(genomeDatabase) {
+					// A genome database can be as large as the genome, so it is only kept until the search is done
+					databaseDir = Files.createTempDirectory(outDir.toPath(), name + "_db").toFile();
+					database = databaseDir.getAbsolutePath() + sep + name;
+					CommandMethods.makeBlastDB(new File(query), BLASTLocation, database);
+					blastQuery = primers;
+					format = CommandMethods.genomeDatabaseFormat;
+				}
+				String[] windowsFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn.exe", "-task", "blastn-short", "-query",
+						blastQuery, "-db", database, "-evalue", "1e-1", "-num_alignments", "1000000", "-num_threads", Integer.toString(cores), "-outfmt", 
+						format};
+				String[] linuxFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn", "-task", "blastn-short", "-query",
+						blastQuery, "-db", database, "-evalue", "1e-1", "-num_alignments", "1000000", "-num_threads", Integer.toString(cores), "-outfmt", 
+						format};
+				ProcessBuilder builder;
 				if(System.getProperty("os.name").contains("Windows")) {
-					p = new ProcessBuilder(windowsFullProcessCall).start();
+					builder = new ProcessBuilder(windowsFullProcessCall);
 				}else {
-					p = new ProcessBuilder(linuxFullProcessCall).start();
+					builder = new ProcessBuilder(linuxFullProcessCall);
 				}
-				try {
-					p.waitFor();
-				}catch(InterruptedException e) {
-					e.printStackTrace();
+				// Nothing reads blastn's messages, so make sure they can never fill the pipe and stall it
+				builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+				Process p = builder.start();
+				OutputStream writer = null;
+				if(writeDetailed) {
+					writer = new BufferedOutputStream(new FileOutputStream(blastTSV));
+					writer.write((CommandMethods.blastHeader + System.getProperty("line.separator")).getBytes(StandardCharsets.UTF_8));
 				}
+				try(InputStream in = p.getInputStream()){
+					BlastRowReader reader = new BlastRowReader(in, primerIndex);
+					while(reader.next()) {
+						if(genomeDatabase) {
+							// Rows of the genome database are turned around as Strings, so they are only materialized when
+							// written out or when they pass
+							String line = writer != null || reader.passes(mismatches) ? 
+									CommandMethods.normalizeGenomeDatabaseRow(reader.getLine()) : null;
+							if(writer != null) {
+								writer.write((line + System.getProperty("line.separator")).getBytes(StandardCharsets.UTF_8));
+							}
+							if(line != null) {
+								CommandMethods.parseBlastLine(line, sample, primerDict, mismatches);
+							}
+							continue;
+						}
+						if(writer != null) {
+							reader.writeRow(writer);
+						}
+						if(reader.passes(mismatches)) {
+							sample.putBlastResult(primerIndex.getID(reader.getPrimer()), reader.toResult(sample.getName()));
+						}
+					}
+				}finally {
+					if(writer != null) {
+						writer.close();
+					}
+				}
+				waitForProcess(p, "blastn of " + name);
 			}catch(IOException e) {
-				e.printStackTrace();
+				throw new UncheckedIOException(e);
+			}finally {
+				coreBudget.release(cores);
+				if(databaseDir != null) {
+					for(File file : databaseDir.listFiles()) {
+						file.delete();
+					}
+					databaseDir.delete();
+				}
 			}
-			CommandMethods.addHeaderToTSV(blastTSV);
 		}
 	}
 }
@@ -2,7 +2,9 @@ package commandpcr;
 
 import dispatchpcr.Dispatcher;
 import insilicopcr.Sample;
+import insilicopcr.AmpliconSupport;
 import insilicopcr.BlastResult;
+import insilicopcr.FastaIndex;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -31,6 +33,8 @@ public class CommandMethods {
 	
 	private static HashMap<Character, Character[]> degenerates = new HashMap<Character, Character[]>();
 	private static Pattern degenRegex;
+	// Between the panel and the primer ID when several primer files are screened at once
+	public static final String panelSeparator = "__";
 	
 	// Input directory must contain at least one fastq/fasta format file
 	public static boolean noFastaFile(File inputFile) {
@@ -187,48 +191,52 @@ public class CommandMethods {
 		
 		HashMap<String, String> fastaDict = new HashMap<String, String>();
 		
-		// First read in all lines
+		// Build each entry as its lines are read, rather than holding a joined copy of the whole file
 		String line;
-		ArrayList<String> lines = new ArrayList<String>();
+		String id = null;
+		StringBuilder seq = new StringBuilder();
 		try (BufferedReader reader = new BufferedReader(new FileReader(file))){
-			try {
-				while((line = reader.readLine()) != null) {
-					if(!line.isEmpty()) {
-						lines.add(line);
+			while((line = reader.readLine()) != null) {
+				if(line.isEmpty()) {
+					continue;
+				}
+				if(line.startsWith(">")) {
+					if(id != null && seq.length() > 0) {
+						fastaDict.put(id, seq.toString());
 					}
+					id = line.substring(1).trim();
+					seq.setLength(0);
+				}else {
+					seq.append(line.trim());
 				}
-			}catch(IOException e) {
-				e.printStackTrace();
 			}
-			reader.close();
+			if(id != null && seq.length() > 0) {
+				fastaDict.put(id, seq.toString());
+			}
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
-		// This will recreate the file in memory
-		String joinedLines = String.join("\n", lines);
-		
-		//Split into entries
-		String[] splitEntries = joinedLines.split(">");
-		for(String entry : splitEntries) {
-			
-			//Get rid of first entry from the split, it will contain nothing
-			if(!entry.isEmpty()) {
-				String[] splitEntry = entry.split("\n");
-				String id = splitEntry[0].trim();
-				String seq = splitEntry[1].trim();
-				if(seq.isEmpty()) {
-					continue;
-				}
-				
-				// Put the entry into the dictionary
-				fastaDict.put(id, seq);
-			}
-		}
 		
 		// Return the filled dictionary
 		return fastaDict;
 	}
 	
+	// Parse several primer files into one dictionary, with every ID tagged as <panel>__<ID> so primers of different panels
+	// never clash and each hit can be traced back to its panel. The panel of a file is its name up to the first dot, and the
+	// panels are added to the list in the order given
+	public static HashMap<String, String> parsePanelsToDictionary(ArrayList<File> primerFiles, ArrayList<String> panels){
+		HashMap<String, String> primerDict = new HashMap<String, String>();
+		for(File primerFile : primerFiles) {
+			String panel = primerFile.getName().split("\\.")[0];
+			panels.add(panel);
+			HashMap<String, String> panelDict = parseFastaToDictionary(primerFile);
+			for(String key : panelDict.keySet()) {
+				primerDict.put(panel + panelSeparator + key, panelDict.get(key));
+			}
+		}
+		return primerDict;
+	}
+	
 	// Process the primers in the primer dictionary
 	public static void processPrimers(HashMap<String, String> primerDict, File outDir, String sep) {
 		
@@ -371,145 +379,154 @@ public class CommandMethods {
 		}
 	}
 	
-	// Add the correct result headers to the Blast tsv output file
-	public static void addHeaderToTSV(File tsvFile) {
-		String tab = "\t";
-		String[] headerFileIDs = new String[] {"qseqid", "sseqid", "positive", "mismatch", "gaps", "evalue",
-				"bitscore", "slen", "length", "qstart", "qend", "qseq", "sstart", "send", "sseq"};
-		String header = String.join(tab, headerFileIDs);
-		
-		ArrayList<String> lines = new ArrayList<String>();
-		String line;
-		try{
-			BufferedReader reader = new BufferedReader(new FileReader(tsvFile));
-			while((line = reader.readLine()) != null) {
-				lines.add(line);
-			}
-			reader.close();
-		}catch(IOException e) {
-			e.printStackTrace();
+	// Make a BLAST database of a genome at out, leaving the folder of the genome itself untouched. Throws if makeblastdb could
+	// not be run or did not exit cleanly, as a search against a missing database finds nothing
+	public static void makeBlastDB(File reference, File BLASTLocation, String out) throws IOException {
+		String in = reference.getAbsolutePath();
+		String[] windowsFullProcessCall = {BLASTLocation.getAbsolutePath() + CommandMain.sep + "makeblastdb.exe", 
+				"-dbtype", "nucl", "-in", in, "-out", out};
+		String[] linuxFullProcessCall = {BLASTLocation.getAbsolutePath() + CommandMain.sep + "makeblastdb", 
+				"-dbtype", "nucl", "-in", in, "-out", out};
+		Process p;
+		if(System.getProperty("os.name").contains("Windows")) {
+			p = new ProcessBuilder(windowsFullProcessCall).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		}else {
+			p = new ProcessBuilder(linuxFullProcessCall).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
 		}
-		
-		lines.add(0, header);
-		try{
-			File newFile = new File(tsvFile.getAbsolutePath());
-			tsvFile.delete();
-			FileWriter writer = new FileWriter(newFile);
-			for(String item : lines) {
-				writer.write(item + System.getProperty("line.separator"));
-			}
-			writer.close();
-		}catch(IOException e) {
-			e.printStackTrace();
+		int status;
+		try {
+			status = p.waitFor();
+		}catch(InterruptedException e) {
+			p.destroy();
+			throw new IOException("makeblastdb of " + in + " was interrupted", e);
+		}
+		if(status != 0) {
+			throw new IOException("makeblastdb of " + in + " exited with status " + status);
+		}
+	}
+	
+	// The same columns as blastHeader when the primers are the query and the genome is the database, so the contig comes
+	// first and the primer second
+	public static final String genomeDatabaseFormat = "6 sseqid qseqid positive mismatch gaps evalue bitscore qlen length sstart send sseq qstart qend qseq";
+	
+	// Put a row of genomeDatabaseFormat in the usual layout. The genome is the subject there, so a primer on the minus strand
+	// shows as descending contig coordinates and the contig's reverse complement. Turned around, the contig runs ascending
+	// on its own strand and the primer descending on its reverse complement, as when the primers are the database
+	public static String normalizeGenomeDatabaseRow(String line) {
+		String[] fields = line.split("\t");
+		if(fields.length < 15 || Integer.parseInt(fields[9]) <= Integer.parseInt(fields[10])) {
+			return line;
 		}
+		String start = fields[9];
+		fields[9] = fields[10];
+		fields[10] = start;
+		start = fields[12];
+		fields[12] = fields[13];
+		fields[13] = start;
+		fields[11] = reverseComplement(fields[11]);
+		fields[14] = reverseComplement(fields[14]);
+		return String.join("\t", fields);
 	}
 	
-	// Fills the sampleDict to be used in the consolidated report method
-	public static void parseBlastOutput(File consolidatedDir, File detailedReport, HashMap<String, String> primerDict,
-			int mismatches, HashMap<String, Sample> sampleDict) {
+	// Reverse complement of an aligned sequence, degenerate bases and gaps included
+	public static String reverseComplement(String seq) {
+		char[] out = new char[seq.length()];
+		for(int i = 0; i < out.length; i++) {
+			char c = seq.charAt(seq.length() - 1 - i);
+			int index = complementFrom.indexOf(c);
+			out[i] = index < 0 ? c : complementTo.charAt(index);
+		}
+		return new String(out);
+	}
+	
+	private static final String complementFrom = "ACGTRYKMBDHVNacgtrykmbdhvn";
+	private static final String complementTo = "TGCAYRMKVHDBNtgcayrmkvhdbn";
+	
+	// Column names of the BLAST output, as requested with -outfmt
+	public static final String blastHeader = String.join("\t", new String[] {"qseqid", "sseqid", "positive", "mismatch", "gaps", "evalue",
+			"bitscore", "slen", "length", "qstart", "qend", "qseq", "sstart", "send", "sseq"});
+	
+	// Adds one row of BLAST output to the sample if the primer aligned over its full length within the permitted mismatches
+	public static void parseBlastLine(String line, Sample sample, HashMap<String, String> primerDict, int mismatches) {
+		if(line.equals("") || line.startsWith("qseqid")) {
+			return;
+		}
+		String[] fields = line.split("\t");
+		String qseqid = fields[0];
+		String sseqid = fields[1];
+		int length = Integer.parseInt(fields[8]);
+		int weightedLength = primerDict.get(sseqid).length();
+		int actualMismatches = Integer.parseInt(fields[3]);
 		
-		// List of blast report files
-		ArrayList<File> reportList = new ArrayList<File>();
-		for(File sampleDir : detailedReport.listFiles()) {
-			for(File sample : sampleDir.listFiles()) {
-				if(sample.getName().contains(".tsv")) {
-					reportList.add(sample);
+		if(length == weightedLength && actualMismatches <= mismatches) {
+			
+			int qstart = Integer.parseInt(fields[9]);
+			int qend = Integer.parseInt(fields[10]);
+			boolean minusStrand = Integer.parseInt(fields[12]) > Integer.parseInt(fields[13]);
+			String sseq = fields[14];
+			sample.putBlastResult(sseqid, new BlastResult(sample.getName(), qseqid, sseqid, actualMismatches, qstart, qend, 
+					length, sseq, minusStrand));
+		}
+	}
+	
+	// Index the contig headers of each sample's fasta files, or assembly if fastq. Headers are only located here, the
+	// descriptions are read from the mapped files by getContigDescription when a report row needs one. A sample restored from
+	// the result cache already has the description of every contig with a hit, so its files are not read at all
+	public static void addContigDict(HashMap<String, Sample> sampleDict) {
+		for(String key : sampleDict.keySet()) {
+			Sample sample = sampleDict.get(key);
+			if(hasAllDescriptions(sample)) {
+				continue;
+			}
+			ArrayList<String> files = new ArrayList<String>();
+			if(sample.getFileType().equals("fastq")) {
+				if(sample.getAssemblyFile() == null) {
+					// Read pair mode, nothing was assembled
+					continue;
 				}
+				files.add(sample.getAssemblyFile());
+			}else {
+				files.addAll(sample.getFiles());
 			}
-		}
-		
-		for(File sampleReport : reportList) {
-			System.out.println("Parsing file: " + sampleReport.getName());
-			String sampleName = sampleReport.getName().split("\\.tsv")[0];			
-			String line;
 			try {
-				BufferedReader reader = new BufferedReader(new FileReader(sampleReport));
-				while((line = reader.readLine()) != null) {
-					if(line.equals("") || line.startsWith("qseqid")) {
-						continue;
-					}
-					String[] fields = line.split("\t");
-					String qseqid = fields[0];
-					String sseqid = fields[1];
-					int length = Integer.parseInt(fields[8]);
-					int weightedLength = primerDict.get(sseqid).length();
-					int actualMismatches = Integer.parseInt(fields[3]);
-					
-					if(length == weightedLength && actualMismatches <= mismatches) {
-						
-						int qstart = Integer.parseInt(fields[9]);
-						int qend = Integer.parseInt(fields[10]);
-						String sseq = fields[14];						
-						if(sampleDict.get(sampleName).getBlastResults().containsKey(sseqid)) {
-							sampleDict.get(sampleName).addBlastResult(sseqid, new BlastResult(sampleName, qseqid, sseqid, actualMismatches, qstart, qend, length, sseq));
-						}else {
-							sampleDict.get(sampleName).addNewBlastResult(sseqid, new BlastResult(sampleName, qseqid, sseqid, actualMismatches, qstart, qend, length, sseq));
-						}
-					}
-				}
-				reader.close();
+				sample.setContigIndex(new FastaIndex(files));
 			}catch(IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
 	
-
-	public static void addContigDict(HashMap<String, Sample> sampleDict) {
-		String line;
-		for(String key : sampleDict.keySet()) {
-			if(sampleDict.get(key).getFileType().equals("fastq")) {
-				try(BufferedReader reader = new BufferedReader(new FileReader(sampleDict.get(key).getAssemblyFile()))){
-					while((line = reader.readLine()) != null) {
-						if(line.startsWith(">")) {
-							String fullLine = line.split(">")[1];
-							String[] items = fullLine.split(" ");
-							String contigID = items[0];
-							if(items.length > 1) {
-								String[] contigDescItems = Arrays.copyOfRange(items, 1, items.length);
-								String description = String.join(" ", contigDescItems);
-								sampleDict.get(key).addContig(contigID, description);
-							}
-							else {
-								sampleDict.get(key).addContig(contigID, "");
-							}
-						}
-					}
-				}catch(IOException e) {
-					e.printStackTrace();
-				};
-			}else {
-				for(String file : sampleDict.get(key).getFiles()) {
-					try(BufferedReader reader = new BufferedReader(new FileReader(file))){
-						while((line = reader.readLine()) != null) {
-							if(line.startsWith(">")) {
-								String fullLine = line.split(">")[1];
-								String[] items = fullLine.split(" ");
-								String contigID = items[0];
-								if(items.length > 1) {
-									String[] contigDescItems = Arrays.copyOfRange(items, 1, items.length);
-									String description = String.join(" ", contigDescItems);
-									sampleDict.get(key).addContig(contigID, description);
-								}else {
-									sampleDict.get(key).addContig(contigID, "");
-								}
-							}
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
+	// Whether every contig the sample has a hit on already has its description
+	private static boolean hasAllDescriptions(Sample sample) {
+		for(ArrayList<BlastResult> results : sample.getBlastResults().values()) {
+			for(BlastResult result : results) {
+				if(!sample.getContigDict().containsKey(result.getQueryID())) {
+					return false;
 				}
 			}
 		}
+		return true;
 	}
 	
 	// Makes the final consolidated report from the multiple blast reports
 	public static void makeConsolidatedReport(File consolidatedDir, String sep, HashMap<String, Sample> sampleDict,
-			HashMap<String, String> primerDict) {
+			HashMap<String, String> primerDict, int maxAmpliconLength) {
+		makeConsolidatedReport(consolidatedDir, sep, sampleDict, primerDict, maxAmpliconLength, null);
+	}
+	
+	// Makes the consolidated report of one panel, from the hits of the primers tagged with it, as <panel>_report.tsv with the
+	// tags taken off again. With a null panel every hit goes into report.tsv
+	public static void makeConsolidatedReport(File consolidatedDir, String sep, HashMap<String, Sample> sampleDict,
+			HashMap<String, String> primerDict, int maxAmpliconLength, String panel) {
+		
+		String prefix = panel == null ? "" : panel + panelSeparator;
 		
 		// Check to see if this is a qPCR or a regular PCR for formatting purposes
 		boolean qPCR = false;
 		for(String key : primerDict.keySet()) {
+			if(!key.startsWith(prefix)) {
+				continue;
+			}
 			if(key.split("-")[key.split("-").length - 1].startsWith("P")) {
 				qPCR = true;
 				break;
@@ -527,7 +544,7 @@ public class CommandMethods {
 		}
 		
 		// Generate the file to be filled in
-		File consolidatedReport = new File(consolidatedDir.getAbsolutePath() + sep + "report.tsv");
+		File consolidatedReport = new File(consolidatedDir.getAbsolutePath() + sep + (panel == null ? "report.tsv" : panel + "_report.tsv"));
 		try{
 			FileWriter writer = new FileWriter(consolidatedReport);
 			writer.write(header);
@@ -536,117 +553,135 @@ public class CommandMethods {
 			for(String key : sampleDict.keySet()) {
 				
 				// Set up all necessary values
-				Sample sample = sampleDict.get(key);
 				String sampleName = key;
+				
+				// A failed sample may be missing hits, so it gets a row saying so instead of a partial result
+				if(sampleDict.get(key).isFailed()) {
+					String[] row = new String[header.split("\t").length];
+					Arrays.fill(row, "NA");
+					row[0] = sampleName;
+					row[1] = "FAILED";
+					writer.write(String.join("\t", row));
+					writer.write(System.getProperty("line.separator"));
+					continue;
+				}
 				HashMap<String, ArrayList<BlastResult>> blastResults = sampleDict.get(key).getBlastResults();
-				if(!blastResults.isEmpty()) {
-					String[] primerHits = blastResults.keySet().toArray(new String[blastResults.keySet().size()]); // Similar to what we did with the degenRegex issue
-					HashMap<String, HashMap<String, ArrayList<String>>> primers = new HashMap<String, HashMap<String, ArrayList<String>>>();
-					
-					/* What this is actually doing is placing the primers into a hashmap based on their base name, alongside
-					 *A list of directions. Therefore, a primer set of NAME-F and NAME-R would be listed under NAME with
-					 *Directions F and R. Similarly, a degenerate primer of NAME-F_1, NAME-F_2, NAME-R_1, and NAME-R_2 would be
-					 *listed under NAME with directions F_1, F_2, R_1, and R_2
-					 */
-					for(String primer : primerHits) {
-						String[] splitPrimer = primer.split("-"); 
-						String direction = splitPrimer[splitPrimer.length - 1];
-						String primerName = String.join("-", Arrays.copyOfRange(splitPrimer, 0, splitPrimer.length - 1));
-						if(!primers.containsKey(primerName)) {
-							HashMap<String, ArrayList<String>> list = new HashMap<String, ArrayList<String>>();
-							ArrayList<String> fList = new ArrayList<String>();
-							ArrayList<String> rList = new ArrayList<String>();
-							ArrayList<String> pList = new ArrayList<String>();
-							if(direction.startsWith("F")) {
-								fList.add(direction);
-							}else if(direction.startsWith("R")) {
-								rList.add(direction);
-							}else if(direction.startsWith("P")) {
-								pList.add(direction);
-							}
-							list.put("F", fList);
-							list.put("R", rList);
-							list.put("P", pList);
-							primers.put(primerName, list);
-						}else {
-							if(direction.startsWith("F")) {
-								primers.get(primerName).get("F").add(direction);
-							}else if(direction.startsWith("R")) {
-								primers.get(primerName).get("R").add(direction);
-							}else if(direction.startsWith("P")) {
-								primers.get(primerName).get("P").add(direction);
-							}
+				
+				/* Pool the hits of every primer under their gene name and direction, so a primer set of NAME-F and NAME-R,
+				 * or the degenerate variants NAME-F_1, NAME-F_2, NAME-R_1 and NAME-R_2, all end up as the F and R hits of NAME.
+				 * Each hit still carries its own primer name for the report.
+				 */
+				HashMap<String, HashMap<String, ArrayList<BlastResult>>> genes = new HashMap<String, HashMap<String, ArrayList<BlastResult>>>();
+				for(String primer : blastResults.keySet()) {
+					if(!primer.startsWith(prefix)) {
+						continue;
+					}
+					String[] splitPrimer = primer.substring(prefix.length()).split("-"); 
+					String direction = splitPrimer[splitPrimer.length - 1];
+					String primerName = String.join("-", Arrays.copyOfRange(splitPrimer, 0, splitPrimer.length - 1));
+					if(!direction.startsWith("F") && !direction.startsWith("R") && !direction.startsWith("P")) {
+						continue;
+					}
+					if(!genes.containsKey(primerName)) {
+						HashMap<String, ArrayList<BlastResult>> list = new HashMap<String, ArrayList<BlastResult>>();
+						list.put("F", new ArrayList<BlastResult>());
+						list.put("R", new ArrayList<BlastResult>());
+						list.put("P", new ArrayList<BlastResult>());
+						genes.put(primerName, list);
+					}
+					genes.get(primerName).get(direction.substring(0, 1)).addAll(blastResults.get(primer));
+				}
+				
+				// Check if primer pairs are present
+				for(String gene : genes.keySet()) {
+					HashMap<String, ArrayList<BlastResult>> hits = genes.get(gene);
+					if(hits.get("F").isEmpty() || hits.get("R").isEmpty() || (qPCR && hits.get("P").isEmpty())) {
+						continue;
+					}
+					HashMap<String, ArrayList<BlastResult>> fByContig = groupByContig(hits.get("F"));
+					HashMap<String, ArrayList<BlastResult>> rByContig = groupByContig(hits.get("R"));
+					HashMap<String, ArrayList<BlastResult>> pByContig = groupByContig(hits.get("P"));
+					for(String contig : fByContig.keySet()) {
+						if(!rByContig.containsKey(contig)) {
+							continue;
 						}
-					}					
-					
-					// Check if primer pairs are present
-					for(String primerKey : primers.keySet()) {
-						HashMap<String, ArrayList<String>> primersList = primers.get(primerKey);
-						if(!primersList.get("F").isEmpty() && !primersList.get("R").isEmpty()) { // Have both F and R primers
-							String gene = primerKey;
-							for(String fPrimer : primersList.get("F")) {
-								for(String rPrimer : primersList.get("R")) {
-									String fwdPrimer = gene + "-" + fPrimer;
-									String revPrimer = gene + "-" + rPrimer;
-									
-									for(BlastResult fResult : sample.getBlastResults().get(fwdPrimer)) {
-										for(BlastResult rResult : sample.getBlastResults().get(revPrimer)) {
-											
-											// If this pair of primers are not on the same contig, skip and keep going
-											if(!fResult.getQueryID().equals(rResult.getQueryID())) {
-												continue;
-											}
-											int startF = fResult.getStart();
-											int endF = fResult.getEnd();
-											int startR = rResult.getStart();
-											int endR = rResult.getEnd();
-											Integer[] positions = {startF, endF, startR, endR};
-											int start = Collections.min(Arrays.asList(positions));
-											int end = Collections.max(Arrays.asList(positions));
-											String location = Integer.toString(start) + "-" + Integer.toString(end);
-											String size = Integer.toString(end - start + 1);
-											String contig = fResult.getQueryID();
-											String contigDescription = getContigDescription(sampleDict, sampleName, contig);
-											String fwdMismatch = Integer.toString(fResult.getMismatch());
-											String revMismatch = Integer.toString(rResult.getMismatch());
-											
-											// If a qPCR probe exists
-											if(qPCR) {
-												if(!primersList.get("P").isEmpty()) {
-													for(String pPrimer : primersList.get("P")) {
-														String probePrimer = gene + "-" + pPrimer;
-														for(BlastResult pResult : sample.getBlastResults().get(probePrimer)) {
-															if(!pResult.getQueryID().equals(fResult.getQueryID())) {
-																continue;
-															}
-															int startP = pResult.getStart();
-															int endP = pResult.getEnd();
-															String locationP = Integer.toString(startP) + "-" + Integer.toString(endP);
-															String sizeP = Integer.toString(endP - startP + 1);
-															String pMismatch = Integer.toString(pResult.getMismatch());
-															
-															// Probe only valid if it is contained within the surrounding amplicon
-															if(startP >= start && endP <= end) {
-																writer.write(String.join("\t", new String[] {sampleName, gene, location, size, contig, 
-																		contigDescription, fwdPrimer, revPrimer, fwdMismatch, revMismatch, probePrimer, 
-																		locationP, sizeP, pMismatch}));
-																writer.write(System.getProperty("line.separator"));
-															}
-														}
-													}
-												}
-											}else {
-												writer.write(String.join("\t", new String[] {sampleName, gene, location, size, contig, contigDescription, 
-														fwdPrimer, revPrimer, fwdMismatch, revMismatch}));
-												writer.write(System.getProperty("line.separator"));
-											}
-										}
+						
+						// The product is either F on the plus strand upstream of R on the minus strand, or the same on the
+						// reverse complement of the contig, R on the plus strand upstream of F on the minus strand
+						ArrayList<BlastResult[]> amplicons = new ArrayList<BlastResult[]>();
+						pairAmplicons(strandHits(fByContig.get(contig), false), strandHits(rByContig.get(contig), true), maxAmpliconLength,
+								false, amplicons);
+						pairAmplicons(strandHits(rByContig.get(contig), false), strandHits(fByContig.get(contig), true), maxAmpliconLength,
+								true, amplicons);
+						ArrayList<BlastResult> probes = pByContig.containsKey(contig) ? strandHits(pByContig.get(contig), null) : null;
+						
+						for(BlastResult[] amplicon : amplicons) {
+							BlastResult fResult = amplicon[0];
+							BlastResult rResult = amplicon[1];
+							int start = Math.min(Math.min(fResult.getStart(), fResult.getEnd()), Math.min(rResult.getStart(), rResult.getEnd()));
+							int end = Math.max(Math.max(fResult.getStart(), fResult.getEnd()), Math.max(rResult.getStart(), rResult.getEnd()));
+							String location = Integer.toString(start) + "-" + Integer.toString(end);
+							String size = Integer.toString(end - start + 1);
+							String contigDescription = getContigDescription(sampleDict, sampleName, contig);
+							String fwdPrimer = fResult.getSubjectID().substring(prefix.length());
+							String revPrimer = rResult.getSubjectID().substring(prefix.length());
+							String fwdMismatch = Integer.toString(fResult.getMismatch());
+							String revMismatch = Integer.toString(rResult.getMismatch());
+							
+							// If a qPCR probe exists
+							if(qPCR) {
+								if(probes == null) {
+									continue;
+								}
+								// Probe only valid if it is contained within the surrounding amplicon
+								for(int p = firstStartAtOrAfter(probes, start); p < probes.size() && probes.get(p).getStart() <= end; p++) {
+									BlastResult pResult = probes.get(p);
+									int startP = pResult.getStart();
+									int endP = pResult.getEnd();
+									if(endP > end) {
+										continue;
 									}
+									String locationP = Integer.toString(startP) + "-" + Integer.toString(endP);
+									String sizeP = Integer.toString(endP - startP + 1);
+									String pMismatch = Integer.toString(pResult.getMismatch());
+									writer.write(String.join("\t", new String[] {sampleName, gene, location, size, contig, 
+											contigDescription, fwdPrimer, revPrimer, fwdMismatch, revMismatch, pResult.getSubjectID().substring(prefix.length()), 
+											locationP, sizeP, pMismatch}));
+									writer.write(System.getProperty("line.separator"));
 								}
+							}else {
+								writer.write(String.join("\t", new String[] {sampleName, gene, location, size, contig, contigDescription, 
+										fwdPrimer, revPrimer, fwdMismatch, revMismatch}));
+								writer.write(System.getProperty("line.separator"));
 							}
 						}
 					}
 				}
+				
+				// Genes found straight from the read pairs have no contig or location, just a count of pairs and a size
+				HashMap<String, AmpliconSupport> support = sampleDict.get(key).getAmpliconSupport();
+				for(String gene : support.keySet()) {
+					if(!gene.startsWith(prefix)) {
+						continue;
+					}
+					AmpliconSupport amplicon = support.get(gene);
+					String[] row = {sampleName, gene.substring(prefix.length()), "NA", amplicon.getEstimatedSize(), "read_pairs", 
+							amplicon.getPairs() + " supporting read pairs", amplicon.getForwardPrimer().substring(prefix.length()), 
+							amplicon.getReversePrimer().substring(prefix.length()), Integer.toString(amplicon.getForwardMismatch()),
+							Integer.toString(amplicon.getReverseMismatch())};
+					if(qPCR) {
+						if(amplicon.getProbe() == null) {
+							continue;
+						}
+						row = Arrays.copyOf(row, 14);
+						row[10] = amplicon.getProbe().substring(prefix.length());
+						row[11] = "NA";
+						row[12] = Integer.toString(amplicon.getProbeLength());
+						row[13] = Integer.toString(amplicon.getProbeMismatch());
+					}
+					writer.write(String.join("\t", row));
+					writer.write(System.getProperty("line.separator"));
+				}
 			}
 			writer.close();
 		}catch(IOException e) {
@@ -654,16 +689,89 @@ public class CommandMethods {
 		}
 	}
 	
+	// Split a list of hits up by the contig they are on
+	private static HashMap<String, ArrayList<BlastResult>> groupByContig(ArrayList<BlastResult> hits){
+		HashMap<String, ArrayList<BlastResult>> byContig = new HashMap<String, ArrayList<BlastResult>>();
+		for(BlastResult hit : hits) {
+			if(!byContig.containsKey(hit.getQueryID())) {
+				byContig.put(hit.getQueryID(), new ArrayList<BlastResult>());
+			}
+			byContig.get(hit.getQueryID()).add(hit);
+		}
+		return byContig;
+	}
+	
+	// The hits on one strand, or both if minusStrand is null, sorted by start coordinate
+	private static ArrayList<BlastResult> strandHits(ArrayList<BlastResult> hits, Boolean minusStrand){
+		ArrayList<BlastResult> stranded = new ArrayList<BlastResult>();
+		for(BlastResult hit : hits) {
+			if(minusStrand == null || hit.isMinusStrand() == minusStrand) {
+				stranded.add(hit);
+			}
+		}
+		stranded.sort((a, b) -> Integer.compare(a.getStart(), b.getStart()));
+		return stranded;
+	}
+	
+	// Sweep the upstream plus strand hits against the downstream minus strand hits, both sorted by start. Each upstream hit
+	// only looks at the downstream hits starting within the maximum amplicon length of it, and the first candidate only ever
+	// moves forward, so the cost is the number of hits plus the number of pairs found. Pairs are stored forward primer first
+	private static void pairAmplicons(ArrayList<BlastResult> upstream, ArrayList<BlastResult> downstream, int maxAmpliconLength, 
+			boolean reverseFirst, ArrayList<BlastResult[]> amplicons) {
+		int first = 0;
+		for(BlastResult up : upstream) {
+			while(first < downstream.size() && downstream.get(first).getStart() < up.getStart()) {
+				first++;
+			}
+			for(int d = first; d < downstream.size(); d++) {
+				BlastResult down = downstream.get(d);
+				if((long)down.getStart() - up.getStart() + 1 > maxAmpliconLength) {
+					break;
+				}
+				if(down.getEnd() < up.getEnd() || (long)down.getEnd() - up.getStart() + 1 > maxAmpliconLength) {
+					continue;
+				}
+				amplicons.add(reverseFirst ? new BlastResult[] {down, up} : new BlastResult[] {up, down});
+			}
+		}
+	}
+	
+	// Binary search for the first hit in a start sorted list that starts at or after the position
+	private static int firstStartAtOrAfter(ArrayList<BlastResult> hits, int position) {
+		int low = 0, high = hits.size();
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(hits.get(mid).getStart() < position) {
+				low = mid + 1;
+			}else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
 	public static String getContigDescription(HashMap<String, Sample> sampleDict, String sampleName, String contig) {
 		Sample sample = sampleDict.get(sampleName);
 		HashMap<String, String> contigDict = sample.getContigDict();
 		if(contigDict.containsKey(contig)) {
 			return contigDict.get(contig);
 		}
+		if(sample.getContigIndex() != null) {
+			String description = sample.getContigIndex().getDescription(contig);
+			contigDict.put(contig, description);
+			return description;
+		}
 		return "";
 	}
 	
 	public static void makeQALog(File qLog, String version, File outputDir, File inputFile, File primerFile, File BBToolsLocation, File BLASTLocation) {
+		makeQALog(qLog, version, outputDir, inputFile, primerFile, BBToolsLocation, BLASTLocation, new ArrayList<String>(), new ArrayList<String>(),
+				new ArrayList<String>());
+	}
+	
+	// Also lists how many cores and how much heap each subprocess of the run was given, and the samples that failed
+	public static void makeQALog(File qLog, String version, File outputDir, File inputFile, File primerFile, File BBToolsLocation, File BLASTLocation,
+			ArrayList<String> coreAllocations, ArrayList<String> memoryAllocations, ArrayList<String> failedSamples) {
 		try(FileWriter writer = new FileWriter(qLog)) {
 			String sep = System.getProperty("line.separator");
 			writer.write("In Silico PCR version: " + version);
@@ -692,6 +800,30 @@ public class CommandMethods {
 				writer.write(sep);
 				writer.write(inputFile.getAbsolutePath());
 			}
+			if(!coreAllocations.isEmpty()) {
+				writer.write(sep);
+				writer.write("Core allocations:");
+				for(String allocation : coreAllocations) {
+					writer.write(sep);
+					writer.write(allocation);
+				}
+			}
+			if(!memoryAllocations.isEmpty()) {
+				writer.write(sep);
+				writer.write("Memory allocations:");
+				for(String allocation : memoryAllocations) {
+					writer.write(sep);
+					writer.write(allocation);
+				}
+			}
+			if(!failedSamples.isEmpty()) {
+				writer.write(sep);
+				writer.write("Failed samples:");
+				for(String sample : failedSamples) {
+					writer.write(sep);
+					writer.write(sample);
+				}
+			}
 			writer.close();
 		}catch(IOException e) {
 			e.printStackTrace();
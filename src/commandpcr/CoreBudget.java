@@ -0,0 +1,46 @@
+package commandpcr;
+
+import java.util.ArrayList;
+
+// One pool of cores shared by every subprocess and search of a run. Each job asks for cores when it starts and hands them back
+// when it ends. A job gets an even share of the cores over the samples still left to finish, so early in a run many narrow
+// jobs run side by side, and towards the tail the last few samples get wider jobs instead of leaving cores idle.
+public class CoreBudget {
+
+	private int totalCores;
+	private int freeCores;
+	private int remainingSamples;
+	private ArrayList<String> allocations = new ArrayList<String>();
+
+	public CoreBudget(int totalCores, int samples) {
+		this.totalCores = Math.max(1, totalCores);
+		this.freeCores = this.totalCores;
+		this.remainingSamples = Math.max(1, samples);
+	}
+
+	// Wait until at least one core is free, then take the current share, or less if fewer are free or the job cannot use it
+	public synchronized int acquire(String job, int maxUseful) throws InterruptedException {
+		while(freeCores == 0) {
+			wait();
+		}
+		int share = Math.max(1, totalCores / Math.max(1, remainingSamples));
+		int granted = Math.max(1, Math.min(Math.min(share, maxUseful), freeCores));
+		freeCores -= granted;
+		allocations.add(job + ": " + granted + " of " + totalCores + " cores");
+		return granted;
+	}
+
+	public synchronized void release(int cores) {
+		freeCores = Math.min(totalCores, freeCores + cores);
+		notifyAll();
+	}
+
+	// A sample has been through all of its stages, so the share of the ones left grows
+	public synchronized void finishSample() {
+		remainingSamples = Math.max(1, remainingSamples - 1);
+	}
+
+	public synchronized ArrayList<String> getAllocations() {
+		return new ArrayList<String>(allocations);
+	}
+}
@@ -0,0 +1,88 @@
+package commandpcr;
+
+import java.util.Arrays;
+
+// A run of whole FastQ records kept as the raw bytes they were read as, with the end offset of each record, so a batch of
+// thousands of reads is a couple of arrays rather than an object per read. Batches are filled by FastqBatchReader and reused
+// once their reads have been dealt with.
+public class FastqBatch {
+
+	private byte[] data = new byte[1 << 20];
+	private int length = 0;
+	private int[] ends = new int[1024];
+	private int count = 0;
+	private boolean[] matched = new boolean[1024];
+
+	public void clear() {
+		length = 0;
+		count = 0;
+	}
+
+	// Append bytes of the record being read
+	public void append(byte[] bytes, int offset, int len) {
+		if(length + len > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+		}
+		System.arraycopy(bytes, offset, data, length, len);
+		length += len;
+	}
+
+	// The bytes appended since the last record make up a complete record
+	public void endRecord() {
+		if(count == ends.length) {
+			ends = Arrays.copyOf(ends, count * 2);
+			matched = Arrays.copyOf(matched, count * 2);
+		}
+		ends[count] = length;
+		matched[count] = false;
+		count++;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getStart(int record) {
+		return record == 0 ? 0 : ends[record - 1];
+	}
+
+	public int getEnd(int record) {
+		return ends[record];
+	}
+
+	// Offset of the first base of the record's sequence, the line after the header
+	public int getSequenceStart(int record) {
+		int i = getStart(record);
+		int end = ends[record];
+		while(i < end && data[i] != '\n') {
+			i++;
+		}
+		return Math.min(i + 1, end);
+	}
+
+	// Offset just past the last base of the record's sequence
+	public int getSequenceEnd(int record) {
+		int i = getSequenceStart(record);
+		int end = ends[record];
+		while(i < end && data[i] != '\n' && data[i] != '\r') {
+			i++;
+		}
+		return i;
+	}
+
+	public boolean isMatched(int record) {
+		return matched[record];
+	}
+
+	public void setMatched(int record, boolean value) {
+		matched[record] = value;
+	}
+}
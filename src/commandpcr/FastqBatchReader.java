@@ -0,0 +1,88 @@
+package commandpcr;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+
+// Reads whole four line FastQ records from a plain or gzipped file into FastqBatches, copying bytes straight from the read
+// buffer into the batch without making a String or object for any read.
+public class FastqBatchReader implements AutoCloseable {
+
+	private InputStream in;
+	private byte[] buffer = new byte[1 << 16];
+	private int position = 0;
+	private int limit = 0;
+	private boolean finished = false;
+
+	public FastqBatchReader(String file) throws IOException {
+		this(file, null, 1);
+	}
+
+	// BGZF files are inflated on the caller's pool of the given number of threads, which the caller was granted cores for
+	public FastqBatchReader(String file, ExecutorService pool, int threads) throws IOException {
+		this.in = open(file, pool, threads);
+	}
+
+	// Open a file for reading, inflating it on the way if it is gzipped
+	public static InputStream open(String file, ExecutorService pool, int threads) throws IOException {
+		if(file.endsWith(".gz")) {
+			return ParallelGzipInputStream.open(file, pool, threads);
+		}
+		return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+	}
+
+	private boolean refill() throws IOException {
+		if(finished) {
+			return false;
+		}
+		limit = in.read(buffer);
+		position = 0;
+		if(limit <= 0) {
+			limit = 0;
+			finished = true;
+			return false;
+		}
+		return true;
+	}
+
+	// Clear the batch and fill it with up to maxRecords records, or until it holds about maxBytes. Returns the number read,
+	// 0 once the file is done. A last record with no newline at the end is given one
+	public int fill(FastqBatch batch, int maxRecords, int maxBytes) throws IOException {
+		batch.clear();
+		while(batch.getCount() < maxRecords && batch.getLength() < maxBytes) {
+			int lines = 0;
+			boolean any = false;
+			while(lines < 4) {
+				if(position == limit && !refill()) {
+					break;
+				}
+				int start = position;
+				while(position < limit && buffer[position] != '\n') {
+					position++;
+				}
+				if(position < limit) {
+					position++;
+					lines++;
+				}
+				batch.append(buffer, start, position - start);
+				any |= position > start;
+			}
+			if(lines < 4) {
+				if(any) {
+					byte[] newline = {'\n'};
+					batch.append(newline, 0, 1);
+					batch.endRecord();
+				}
+				break;
+			}
+			batch.endRecord();
+		}
+		return batch.getCount();
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,133 @@
+package commandpcr;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+
+// Runs BBTools programs inside this JVM instead of starting a new JVM for every call. The classes are loaded from the current
+// directory of BBToolsLocation through a class loader of their own, which later jobs reuse once the JIT has warmed them up.
+// Assertions are enabled as they are with -ea. BBTools keeps settings such as its thread count in static fields and sizes its
+// tables from the whole heap, so jobs run here one at a time, each holding the whole heap. BBTools also calls System.exit on
+// its error paths, which would end the run, so exits from BBTools code are blocked and the job goes to a subprocess instead.
+public class InProcessBBTools {
+
+	private URL[] classPath;
+	private volatile boolean available = true;
+	private BBToolsLoader loader;
+
+	// The loader of the BBTools classes, told apart from every other loader by its type, so that exits from classes of
+	// a discarded loader are still recognised
+	private static class BBToolsLoader extends URLClassLoader {
+
+		public BBToolsLoader(URL[] classPath) {
+			super(classPath, ClassLoader.getPlatformClassLoader());
+		}
+	}
+
+	// Turns a System.exit called from BBTools code into a SecurityException. Exits from anywhere else, and every other
+	// permission, are allowed
+	@SuppressWarnings("removal")
+	private static class ExitGuard extends SecurityManager {
+
+		@Override
+		public void checkExit(int status) {
+			for(Class<?> caller : getClassContext()) {
+				if(caller.getClassLoader() instanceof BBToolsLoader) {
+					throw new SecurityException("BBTools exited with status " + status);
+				}
+			}
+		}
+
+		@Override
+		public void checkPermission(Permission permission) {
+		}
+
+		@Override
+		public void checkPermission(Permission permission, Object context) {
+		}
+	}
+
+	@SuppressWarnings("removal")
+	public InProcessBBTools(File BBToolsLocation) {
+		try {
+			classPath = new URL[] {new File(BBToolsLocation, "current").toURI().toURL()};
+		}catch(MalformedURLException e) {
+			e.printStackTrace();
+			available = false;
+			return;
+		}
+		try {
+			System.setSecurityManager(new ExitGuard());
+		}catch(UnsupportedOperationException | SecurityException e) {
+			// Newer runtimes refuse a security manager, and without the guard one failing job would end the whole run
+			System.out.println("Cannot guard against BBTools exiting in this runtime, running BBTools as a subprocess instead");
+			available = false;
+		}
+	}
+
+	// Whether jobs can be run here at all, false if the classes could not be found or exits could not be guarded against
+	public boolean isAvailable() {
+		return available;
+	}
+
+	private URLClassLoader getLoader() {
+		if(loader == null) {
+			// Parented on the platform loader, so BBTools sees only the JDK and its own classes, never ours
+			loader = new BBToolsLoader(classPath);
+			loader.setDefaultAssertionStatus(true);
+		}
+		return loader;
+	}
+
+	// Run the program's main method with the arguments. Returns false if it could not be run here, and the caller should fall
+	// back to a subprocess. Once the classes fail to load, later calls return false straight away
+	public synchronized boolean run(String program, ArrayList<String> arguments) {
+		if(!available) {
+			return false;
+		}
+		Method main;
+		try {
+			Class<?> programClass = Class.forName(program, true, getLoader());
+			main = programClass.getMethod("main", String[].class);
+		}catch(ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+			System.out.println("Could not load " + program + " in process, running BBTools as a subprocess instead");
+			available = false;
+			return false;
+		}
+		try {
+			main.invoke(null, (Object)arguments.toArray(new String[arguments.size()]));
+			return true;
+		}catch(InvocationTargetException e) {
+			// The program itself failed or tried to exit, which may have left the statics in a bad state, so start afresh
+			e.getCause().printStackTrace();
+			discardLoader();
+			return false;
+		}catch(IllegalAccessException e) {
+			e.printStackTrace();
+			available = false;
+			return false;
+		}
+	}
+
+	private void discardLoader() {
+		if(loader != null) {
+			try {
+				loader.close();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+			loader = null;
+		}
+	}
+
+	// Close the loader once no more jobs will run
+	public synchronized void close() {
+		discardLoader();
+	}
+}
@@ -0,0 +1,80 @@
+package commandpcr;
+
+import java.util.Arrays;
+
+// Open addressing count of 2 bit packed k-mers, kept in a long array of keys and an int array of counts alongside it, laid
+// out and hashed the same way as KmerSet.
+public class KmerCounts {
+
+	private static final long empty = -1L;
+
+	private long[] keys;
+	private int[] counts;
+	private int size = 0;
+
+	public KmerCounts() {
+		keys = new long[1024];
+		counts = new int[1024];
+		Arrays.fill(keys, empty);
+	}
+
+	private static int slot(long kmer, int mask) {
+		long h = kmer * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	public void increment(long kmer) {
+		if((size + 1) * 2 > keys.length) {
+			grow();
+		}
+		int mask = keys.length - 1;
+		int s = slot(kmer, mask);
+		while(keys[s] != empty) {
+			if(keys[s] == kmer) {
+				counts[s]++;
+				return;
+			}
+			s = (s + 1) & mask;
+		}
+		keys[s] = kmer;
+		counts[s] = 1;
+		size++;
+	}
+
+	// The count of the k-mer, 0 if it was never seen
+	public int get(long kmer) {
+		int mask = keys.length - 1;
+		int s = slot(kmer, mask);
+		long key;
+		while((key = keys[s]) != empty) {
+			if(key == kmer) {
+				return counts[s];
+			}
+			s = (s + 1) & mask;
+		}
+		return 0;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new long[oldKeys.length * 2];
+		counts = new int[oldKeys.length * 2];
+		Arrays.fill(keys, empty);
+		int mask = keys.length - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != empty) {
+				int s = slot(oldKeys[i], mask);
+				while(keys[s] != empty) {
+					s = (s + 1) & mask;
+				}
+				keys[s] = oldKeys[i];
+				counts[s] = oldCounts[i];
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,87 @@
+package commandpcr;
+
+import java.util.Arrays;
+
+// Open addressing set of 2 bit packed k-mers held in a plain long array, so that neither adding nor looking up a k-mer
+// allocates. k-mers are at most 31 bases, which leaves the top bits free, so -1 can never be a k-mer and marks an empty slot.
+public class KmerSet {
+
+	private static final long empty = -1L;
+
+	private long[] slots;
+	private int size = 0;
+
+	public KmerSet() {
+		slots = new long[1024];
+		Arrays.fill(slots, empty);
+	}
+
+	// Spread the k-mer bits over the whole word before taking the slot, as k-mers differing only in their first bases would
+	// otherwise all land in the same few slots
+	private static int slot(long kmer, int mask) {
+		long h = kmer * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	// Returns false if the k-mer was already in the set
+	public boolean add(long kmer) {
+		if((size + 1) * 2 > slots.length) {
+			grow();
+		}
+		int mask = slots.length - 1;
+		int s = slot(kmer, mask);
+		while(slots[s] != empty) {
+			if(slots[s] == kmer) {
+				return false;
+			}
+			s = (s + 1) & mask;
+		}
+		slots[s] = kmer;
+		size++;
+		return true;
+	}
+
+	public boolean contains(long kmer) {
+		int mask = slots.length - 1;
+		int s = slot(kmer, mask);
+		long value;
+		while((value = slots[s]) != empty) {
+			if(value == kmer) {
+				return true;
+			}
+			s = (s + 1) & mask;
+		}
+		return false;
+	}
+
+	private void grow() {
+		long[] old = slots;
+		slots = new long[old.length * 2];
+		Arrays.fill(slots, empty);
+		int mask = slots.length - 1;
+		for(long kmer : old) {
+			if(kmer != empty) {
+				int s = slot(kmer, mask);
+				while(slots[s] != empty) {
+					s = (s + 1) & mask;
+				}
+				slots[s] = kmer;
+			}
+		}
+	}
+
+	// The smaller of a k-mer and its reverse complement, so that both strands of a sequence give the same k-mer
+	public static long canonical(long kmer, int k) {
+		long reverse = 0;
+		long forward = kmer;
+		for(int j = 0; j < k; j++) {
+			reverse = (reverse << 2) | (3 - (forward & 3));
+			forward >>>= 2;
+		}
+		return Math.min(kmer, reverse);
+	}
+
+	public int size() {
+		return size;
+	}
+}
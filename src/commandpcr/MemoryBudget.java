@@ -0,0 +1,99 @@
+package commandpcr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// Memory shared by the BBTools subprocesses of a run, in MB. Each job reserves the heap it will be started with and only
+// starts once the reservation fits in what is left, otherwise it queues. Jobs are let in first come first served, so a large
+// assembly is not starved by a stream of small baiting jobs slipping in ahead of it.
+public class MemoryBudget {
+
+	public static final int minHeap = 1024;
+	public static final int maxHeap = 7168;
+
+	private long totalMB;
+	private long freeMB;
+	private long nextTicket = 0;
+	private long nowServing = 0;
+	private HashSet<Long> abandoned = new HashSet<Long>();
+	private ArrayList<String> allocations = new ArrayList<String>();
+
+	// memGB is the physical memory of the machine, 0 if it could not be found, in which case jobs are never held back
+	public MemoryBudget(double memGB) {
+		if(memGB <= 0) {
+			totalMB = Long.MAX_VALUE / 2;
+		}else {
+			// Leave room for this JVM's own heap and for the OS
+			long hostMB = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+			totalMB = Math.max(minHeap, (long)(memGB * 1000) - hostMB - 1024);
+		}
+		freeMB = totalMB;
+	}
+
+	private MemoryBudget(long totalMB) {
+		this.totalMB = Math.max(minHeap, totalMB);
+		freeMB = this.totalMB;
+	}
+
+	// For BBTools run in process, where every job shares this JVM's heap, less 512 MB kept back for the rest of the run
+	public static MemoryBudget forHostHeap() {
+		return new MemoryBudget(Runtime.getRuntime().maxMemory() / (1024 * 1024) - 512);
+	}
+
+	// Heap for a job that holds roughly bytesPerInputByte bytes per byte of input, kept between 1 and 7 GB
+	public static int heapFor(long inputBytes, int bytesPerInputByte) {
+		long mb = minHeap + inputBytes / (1024 * 1024) * bytesPerInputByte;
+		return (int)Math.max(minHeap, Math.min(maxHeap, mb));
+	}
+
+	// Approximate uncompressed size of the files, counting gzipped files as four times their size
+	public static long inputSize(List<String> files) {
+		long size = 0;
+		for(String file : files) {
+			long length = new File(file).length();
+			size += file.endsWith(".gz") ? length * 4 : length;
+		}
+		return size;
+	}
+
+	// Wait for the job's turn and for its heap to fit, then reserve it. A heap larger than the whole budget is cut down to the
+	// budget, so the job still runs, just alone
+	public synchronized int acquire(String job, int heapMB) throws InterruptedException {
+		int granted = (int)Math.min(heapMB, totalMB);
+		long ticket = nextTicket++;
+		try {
+			while(ticket != nowServing || freeMB < granted) {
+				wait();
+			}
+		}catch(InterruptedException e) {
+			// Give up the place in the queue so the jobs behind are not stuck waiting for this one
+			abandoned.add(ticket);
+			skipAbandoned();
+			notifyAll();
+			throw e;
+		}
+		nowServing++;
+		skipAbandoned();
+		freeMB -= granted;
+		allocations.add(job + ": " + granted + " MB heap");
+		notifyAll();
+		return granted;
+	}
+
+	private void skipAbandoned() {
+		while(abandoned.remove(nowServing)) {
+			nowServing++;
+		}
+	}
+
+	public synchronized void release(int heapMB) {
+		freeMB = Math.min(totalMB, freeMB + heapMB);
+		notifyAll();
+	}
+
+	public synchronized ArrayList<String> getAllocations() {
+		return new ArrayList<String>(allocations);
+	}
+}
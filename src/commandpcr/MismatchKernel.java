@@ -0,0 +1,107 @@
+package commandpcr;
+
+import insilicopcr.PackedGenome;
+
+// Mismatch counting for one primer orientation against 2 bit packed genome windows. Concrete primer bases are packed the same
+// way as the genome, so 32 positions are compared at once by XOR, folding each 2 bit lane down to one bit and a popcount,
+// which the JIT turns into a single POPCNT. Degenerate positions are left out of the XOR and checked one by one against
+// their masks, but only for windows that are still within the budget. Windows that cover an exception base in the genome
+// go through the scalar path instead, as the packed word reads an exception as an A.
+public class MismatchKernel {
+
+	private static final long lowLanes = 0x5555555555555555L;
+
+	private byte[] masks;
+	private int words;
+	private long[] codes;
+	private long[] care;
+	private int fixedMismatches = 0;
+	private int[] degeneratePositions;
+	private byte[] degenerateMasks;
+
+	// Masks use A=1, C=2, G=4, T=8 as compiled by PrimerSearch.compilePrimer
+	public MismatchKernel(byte[] masks) {
+		this.masks = masks;
+		words = (masks.length + 31) / 32;
+		codes = new long[words];
+		care = new long[words];
+		int degenerateCount = 0;
+		for(int j = 0; j < masks.length; j++) {
+			int bases = Integer.bitCount(masks[j]);
+			if(bases > 1 && bases < 4) {
+				degenerateCount++;
+			}
+		}
+		degeneratePositions = new int[degenerateCount];
+		degenerateMasks = new byte[degenerateCount];
+		degenerateCount = 0;
+		for(int j = 0; j < masks.length; j++) {
+			int bases = Integer.bitCount(masks[j]);
+			int shift = 62 - 2 * (j & 31);
+			if(bases == 1) {
+				codes[j >>> 5] |= ((long)Integer.numberOfTrailingZeros(masks[j])) << shift;
+				care[j >>> 5] |= 1L << shift;
+			}else if(bases == 0) {
+				// Not a base at all, can never match
+				fixedMismatches++;
+			}else if(bases < 4) {
+				degeneratePositions[degenerateCount] = j;
+				degenerateMasks[degenerateCount] = masks[j];
+				degenerateCount++;
+			}
+			// An N matches any of A, C, G or T, so it needs no check here
+		}
+	}
+
+	public int getLength() {
+		return masks.length;
+	}
+
+	// Number of packed words a window for this primer needs
+	public int getWords() {
+		return words;
+	}
+
+	// The window holds the packed genome words at the window start, 32 bases on, 64 bases on and so forth, as read by
+	// PackedGenome.getWindow. Counting stops once the budget is exceeded, so any result over the budget only means a miss
+	public int countMismatches(long[] window, int budget) {
+		int count = fixedMismatches;
+		for(int k = 0; k < words; k++) {
+			long diff = window[k] ^ codes[k];
+			count += Long.bitCount((diff | (diff >>> 1)) & lowLanes & care[k]);
+			if(count > budget) {
+				return count;
+			}
+		}
+		for(int d = 0; d < degeneratePositions.length; d++) {
+			int j = degeneratePositions[d];
+			int code = (int)(window[j >>> 5] >>> (62 - 2 * (j & 31))) & 3;
+			if((degenerateMasks[d] & (1 << code)) == 0) {
+				count++;
+				if(count > budget) {
+					return count;
+				}
+			}
+		}
+		return count;
+	}
+
+	// Scalar fallback, one base at a time, for windows that contain exception bases. An exception never matches
+	public int countMismatchesScalar(PackedGenome genome, long position, int budget) {
+		int count = 0;
+		int exception = genome.nextException(position);
+		for(int j = 0; j < masks.length; j++) {
+			boolean isException = exception < genome.getExceptionCount() && genome.getExceptionPosition(exception) == position + j;
+			if(isException) {
+				exception++;
+			}
+			if(isException || (masks[j] & (1 << genome.getCode(position + j))) == 0) {
+				count++;
+				if(count > budget) {
+					return count;
+				}
+			}
+		}
+		return count;
+	}
+}
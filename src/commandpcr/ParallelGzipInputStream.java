@@ -0,0 +1,194 @@
+package commandpcr;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+// Inflates a BGZF file, the blocked gzip written by bgzip and most sequencers, on a few threads at once. Every BGZF block is a
+// gzip member of its own that records its compressed size in the header, so the blocks can be cut out of the file without
+// inflating anything. Blocks are read on the calling thread, inflated on the caller's pool, which holds the cores the caller
+// was granted, and handed back in file order. Any other gzip file, including a plain multi-member one whose member sizes are
+// only found by inflating, goes through GZIPInputStream, as does the rest of a BGZF file from the first member that is not
+// a BGZF block.
+public class ParallelGzipInputStream extends InputStream {
+
+	// Room to read a member header, its extra field included, and still go back to its start
+	private static final int maxHeader = 12 + 65535;
+
+	private BufferedInputStream in;
+	private ExecutorService pool;
+	private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private int depth;
+	private boolean endOfBlocks = false;
+	private InputStream tail = null;
+	private byte[] block = new byte[0];
+	private int position = 0;
+
+	private ParallelGzipInputStream(BufferedInputStream in, ExecutorService pool, int threads) {
+		this.in = in;
+		this.pool = pool;
+		this.depth = threads * 4;
+	}
+
+	// Open a gzipped file, inflated on the pool if it is BGZF and the pool has more than one thread. The pool is the caller's
+	// and is not shut down on close
+	public static InputStream open(String file, ExecutorService pool, int threads) throws IOException {
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		in.mark(32);
+		byte[] header = new byte[18];
+		int read = in.readNBytes(header, 0, header.length);
+		in.reset();
+		if(pool != null && threads > 1 && read == header.length && isBgzfHeader(header)) {
+			return new ParallelGzipInputStream(in, pool, threads);
+		}
+		return new GZIPInputStream(in, 1 << 16);
+	}
+
+	// gzip magic and deflate, the extra field flag, and a BC subfield of length 2 first in the extra field
+	private static boolean isBgzfHeader(byte[] header) {
+		return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && (header[3] & 4) != 0 &&
+				header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+	private static int littleEndian(byte[] bytes, int offset, int length) {
+		int value = 0;
+		for(int i = length - 1; i >= 0; i--) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	// Queue blocks for inflating until enough are in flight or the file ends
+	private void fillPending() throws IOException {
+		while(!endOfBlocks && pending.size() < depth) {
+			in.mark(maxHeader);
+			byte[] header = new byte[12];
+			int read = in.readNBytes(header, 0, 12);
+			if(read == 0) {
+				endOfBlocks = true;
+				return;
+			}
+			if(read < 12 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & 4) == 0) {
+				readTail();
+				return;
+			}
+			int extraLength = littleEndian(header, 10, 2);
+			byte[] extra = in.readNBytes(extraLength);
+			int blockSize = -1;
+			for(int i = 0; i + 4 <= extra.length; ) {
+				int fieldLength = littleEndian(extra, i + 2, 2);
+				if(extra[i] == 'B' && extra[i + 1] == 'C' && fieldLength == 2) {
+					blockSize = littleEndian(extra, i + 4, 2) + 1;
+				}
+				i += 4 + fieldLength;
+			}
+			if(blockSize < 0 || extra.length != extraLength) {
+				readTail();
+				return;
+			}
+			byte[] rest = in.readNBytes(blockSize - 12 - extraLength);
+			if(rest.length != blockSize - 12 - extraLength) {
+				throw new EOFException("BGZF block cut short");
+			}
+			pending.add(pool.submit(() -> inflate(rest)));
+		}
+	}
+
+	// The member at the mark is not a BGZF block, so it and everything after it are inflated by GZIPInputStream once the
+	// blocks before it have been read
+	private void readTail() throws IOException {
+		in.reset();
+		endOfBlocks = true;
+		tail = new GZIPInputStream(in, 1 << 16);
+	}
+
+	// The compressed data followed by the CRC32 and size of the inflated block
+	private static byte[] inflate(byte[] rest) throws IOException {
+		int dataLength = rest.length - 8;
+		int crc = littleEndian(rest, dataLength, 4);
+		int size = littleEndian(rest, dataLength + 4, 4);
+		byte[] out = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(rest, 0, dataLength);
+			int done = 0;
+			while(done < size) {
+				int n = inflater.inflate(out, done, size - done);
+				if(n == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				done += n;
+			}
+			if(done != size) {
+				throw new IOException("BGZF block inflated to " + done + " bytes instead of " + size);
+			}
+		}catch(DataFormatException e) {
+			throw new IOException(e);
+		}finally {
+			inflater.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(out);
+		if((int)check.getValue() != crc) {
+			throw new IOException("BGZF block failed its CRC check");
+		}
+		return out;
+	}
+
+	// Move on to the next block with any bytes in it, false once every block has been read
+	private boolean nextBlock() throws IOException {
+		while(position == block.length) {
+			fillPending();
+			if(pending.isEmpty()) {
+				return false;
+			}
+			try {
+				block = pending.poll().get();
+			}catch(InterruptedException | ExecutionException e) {
+				throw new IOException(e);
+			}
+			position = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!nextBlock()) {
+			return tail != null ? tail.read() : -1;
+		}
+		return block[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if(length == 0) {
+			return 0;
+		}
+		if(!nextBlock()) {
+			return tail != null ? tail.read(buffer, offset, length) : -1;
+		}
+		int n = Math.min(length, block.length - position);
+		System.arraycopy(block, position, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(Future<byte[]> future : pending) {
+			future.cancel(false);
+		}
+		in.close();
+	}
+}
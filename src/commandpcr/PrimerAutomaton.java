@@ -0,0 +1,114 @@
+package commandpcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Aho-Corasick automaton over the 2 bit base codes (A=0, C=1, G=2, T=3) for exact matching of many primers in one pass.
+// Failure links are folded into the transition table while building, so scanning is a single array lookup per base
+// whatever the number of primers. Each state lists every pattern ending there, including those reached through failure links.
+public class PrimerAutomaton {
+
+	private int[] transitions;
+	private int[] outputStarts;
+	private int[] outputs;
+	private int[] patternLengths;
+
+	public PrimerAutomaton(ArrayList<byte[]> patterns) {
+		patternLengths = new int[patterns.size()];
+
+		// Build the trie, with -1 for a missing edge
+		int maxStates = 1;
+		for(byte[] pattern : patterns) {
+			maxStates += pattern.length;
+		}
+		int[] trie = new int[maxStates * 4];
+		Arrays.fill(trie, -1);
+		int[] ownOutputCounts = new int[maxStates];
+		int[][] ownOutputs = new int[maxStates][];
+		int stateCount = 1;
+		for(int p = 0; p < patterns.size(); p++) {
+			byte[] pattern = patterns.get(p);
+			patternLengths[p] = pattern.length;
+			int state = 0;
+			for(byte code : pattern) {
+				if(trie[state * 4 + code] == -1) {
+					trie[state * 4 + code] = stateCount++;
+				}
+				state = trie[state * 4 + code];
+			}
+			if(ownOutputs[state] == null) {
+				ownOutputs[state] = new int[2];
+			}else if(ownOutputCounts[state] == ownOutputs[state].length) {
+				ownOutputs[state] = Arrays.copyOf(ownOutputs[state], ownOutputCounts[state] * 2);
+			}
+			ownOutputs[state][ownOutputCounts[state]++] = p;
+		}
+
+		// Breadth first, so that a state's failure target is always complete before the state itself
+		transitions = new int[stateCount * 4];
+		int[] failure = new int[stateCount];
+		int[] queue = new int[stateCount];
+		int[][] allOutputs = new int[stateCount][];
+		allOutputs[0] = new int[0];
+		int head = 0, tail = 0;
+		for(int code = 0; code < 4; code++) {
+			int child = trie[code];
+			if(child == -1) {
+				transitions[code] = 0;
+			}else {
+				transitions[code] = child;
+				failure[child] = 0;
+				queue[tail++] = child;
+			}
+		}
+		while(head < tail) {
+			int state = queue[head++];
+			int[] own = ownOutputs[state] == null ? new int[0] : Arrays.copyOf(ownOutputs[state], ownOutputCounts[state]);
+			int[] inherited = allOutputs[failure[state]];
+			int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+			System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+			allOutputs[state] = merged;
+			for(int code = 0; code < 4; code++) {
+				int child = trie[state * 4 + code];
+				if(child == -1) {
+					transitions[state * 4 + code] = transitions[failure[state] * 4 + code];
+				}else {
+					transitions[state * 4 + code] = child;
+					failure[child] = transitions[failure[state] * 4 + code];
+					queue[tail++] = child;
+				}
+			}
+		}
+
+		// Flatten the output lists so each state is a range in one array
+		outputStarts = new int[stateCount + 1];
+		for(int state = 0; state < stateCount; state++) {
+			outputStarts[state + 1] = outputStarts[state] + allOutputs[state].length;
+		}
+		outputs = new int[outputStarts[stateCount]];
+		for(int state = 0; state < stateCount; state++) {
+			System.arraycopy(allOutputs[state], 0, outputs, outputStarts[state], allOutputs[state].length);
+		}
+	}
+
+	// The state after reading a base code, the root state is 0
+	public int next(int state, int code) {
+		return transitions[state * 4 + code];
+	}
+
+	public int getOutputStart(int state) {
+		return outputStarts[state];
+	}
+
+	public int getOutputEnd(int state) {
+		return outputStarts[state + 1];
+	}
+
+	public int getOutput(int index) {
+		return outputs[index];
+	}
+
+	public int getPatternLength(int pattern) {
+		return patternLengths[pattern];
+	}
+}
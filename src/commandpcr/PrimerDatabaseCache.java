@@ -0,0 +1,68 @@
+package commandpcr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+
+// Processed primer files and their BLAST databases from earlier runs, one folder per primer set. A folder is named after the
+// SHA-256 of the primers as they were read, before degenerate bases were expanded, and of the makeblastdb used, so a run with
+// a panel it has seen before copies the expanded primer_tmp.fasta and its database into the output directory rather than
+// processing the primers and starting makeblastdb again. A folder is filled under a temporary name and renamed once whole, so
+// a folder that exists is always complete.
+public class PrimerDatabaseCache {
+
+	private static final String primerFile = "primer_tmp.fasta";
+
+	private File root;
+	private File entry;
+
+	public PrimerDatabaseCache(File root, HashMap<String, String> primerDict, File BLASTLocation) {
+		this.root = root;
+		root.mkdirs();
+		this.entry = new File(root, ResultCache.settingsKey(primerDict, 0, "makeblastdb " + BLASTLocation.getAbsolutePath()));
+	}
+
+	// Copy the cached primers and database into the output directory. Returns false if this primer set has not been cached
+	public boolean restore(File outDir) {
+		if(!entry.isDirectory()) {
+			return false;
+		}
+		try {
+			for(File file : entry.listFiles()) {
+				Files.copy(file.toPath(), new File(outDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	// Keep the primers and database just made in the output directory, if makeblastdb got as far as writing its index
+	public void store(File outDir) {
+		if(entry.isDirectory() || !new File(outDir, primerFile + ".nin").exists()) {
+			return;
+		}
+		File temp = new File(root, entry.getName() + "." + ProcessHandle.current().pid() + ".tmp");
+		try {
+			temp.mkdirs();
+			for(File file : outDir.listFiles()) {
+				if(file.getName().startsWith(primerFile)) {
+					Files.copy(file.toPath(), new File(temp, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			// Another run may have stored the same primer set first, which is just as good
+			File[] partial = temp.listFiles();
+			if(partial != null) {
+				for(File file : partial) {
+					file.delete();
+				}
+			}
+			temp.delete();
+		}
+	}
+}
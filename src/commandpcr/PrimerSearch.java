@@ -0,0 +1,251 @@
+package commandpcr;
+
+import insilicopcr.BlastResult;
+import insilicopcr.PackedGenome;
+import insilicopcr.Sample;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Pure Java replacement for the blastn search of primers against a genome. Every contig is scanned on both strands, and a
+// primer hit is only kept if it covers the full primer length with no more than the permitted number of mismatches, which
+// is the same rule BlastRowReader.passes applies to the BLAST rows. Hits are added to the Sample directly instead of a .tsv file.
+public class PrimerSearch {
+
+	// Every base, degenerate or not, is a bitmask of the bases it stands for: A=1, C=2, G=4, T=8
+	private static final byte[] baseMasks = new byte[128];
+	static {
+		String codes = "ACGTRYSWKMBDHVN";
+		int[] masks = {1, 2, 4, 8, 1|4, 2|8, 4|2, 1|8, 4|8, 1|2, 2|4|8, 1|4|8, 1|2|8, 1|2|4, 1|2|4|8};
+		for(int i = 0; i < codes.length(); i++) {
+			baseMasks[codes.charAt(i)] = (byte)masks[i];
+			baseMasks[Character.toLowerCase(codes.charAt(i))] = (byte)masks[i];
+		}
+	}
+
+	private String[] primerIDs;
+	private String[] primerSeqs;
+	private String[] primerRevComps;
+	private byte[][] primerMasks;
+	private byte[][] primerRevCompMasks;
+	private int mismatches;
+	
+	// Exact searches run through one automaton of every primer. Only primers with too many degenerate bases to expand
+	// are left to the mismatch kernels, which handle every primer when mismatches are allowed
+	private static final int maxExpansion = 256;
+	private PrimerAutomaton automaton;
+	private int[] patternPrimers;
+	private boolean[] patternReversed;
+	private int[] maskPrimers;
+	private MismatchKernel[] forwardKernels;
+	private MismatchKernel[] reverseKernels;
+	private int minLength;
+	private int maxWords;
+
+	// Degenerate primers are compiled once into per-position masks, so they are matched in a single pass under their
+	// original name rather than being expanded into every possible sequence
+	public PrimerSearch(HashMap<String, String> primerDict, int mismatches) {
+		this.mismatches = mismatches;
+		primerIDs = primerDict.keySet().toArray(new String[primerDict.keySet().size()]);
+		primerSeqs = new String[primerIDs.length];
+		primerRevComps = new String[primerIDs.length];
+		primerMasks = new byte[primerIDs.length][];
+		primerRevCompMasks = new byte[primerIDs.length][];
+		for(int i = 0; i < primerIDs.length; i++) {
+			primerSeqs[i] = primerDict.get(primerIDs[i]).toUpperCase();
+			primerRevComps[i] = reverseComplement(primerSeqs[i]);
+			primerMasks[i] = compilePrimer(primerSeqs[i]);
+			primerRevCompMasks[i] = compilePrimer(primerRevComps[i]);
+		}
+		
+		ArrayList<Integer> scanned = new ArrayList<Integer>();
+		if(mismatches == 0) {
+			ArrayList<byte[]> patterns = new ArrayList<byte[]>();
+			ArrayList<Integer> primers = new ArrayList<Integer>();
+			ArrayList<Boolean> reversed = new ArrayList<Boolean>();
+			for(int i = 0; i < primerIDs.length; i++) {
+				ArrayList<byte[]> fwd = expandMasks(primerMasks[i]);
+				ArrayList<byte[]> rev = expandMasks(primerRevCompMasks[i]);
+				if(fwd == null || rev == null) {
+					scanned.add(i);
+					continue;
+				}
+				for(byte[] pattern : fwd) {
+					patterns.add(pattern);
+					primers.add(i);
+					reversed.add(false);
+				}
+				for(byte[] pattern : rev) {
+					patterns.add(pattern);
+					primers.add(i);
+					reversed.add(true);
+				}
+			}
+			automaton = new PrimerAutomaton(patterns);
+			patternPrimers = new int[primers.size()];
+			patternReversed = new boolean[reversed.size()];
+			for(int p = 0; p < patternPrimers.length; p++) {
+				patternPrimers[p] = primers.get(p);
+				patternReversed[p] = reversed.get(p);
+			}
+		}else {
+			for(int i = 0; i < primerIDs.length; i++) {
+				scanned.add(i);
+			}
+		}
+		maskPrimers = new int[scanned.size()];
+		forwardKernels = new MismatchKernel[scanned.size()];
+		reverseKernels = new MismatchKernel[scanned.size()];
+		minLength = Integer.MAX_VALUE;
+		maxWords = 0;
+		for(int p = 0; p < maskPrimers.length; p++) {
+			maskPrimers[p] = scanned.get(p);
+			forwardKernels[p] = new MismatchKernel(primerMasks[maskPrimers[p]]);
+			reverseKernels[p] = new MismatchKernel(primerRevCompMasks[maskPrimers[p]]);
+			minLength = Math.min(minLength, forwardKernels[p].getLength());
+			maxWords = Math.max(maxWords, forwardKernels[p].getWords());
+		}
+	}
+	
+	// Every concrete sequence of base codes a primer mask allows, or null if there are more than maxExpansion of them
+	private static ArrayList<byte[]> expandMasks(byte[] masks) {
+		ArrayList<byte[]> expanded = new ArrayList<byte[]>();
+		expanded.add(new byte[masks.length]);
+		for(int j = 0; j < masks.length; j++) {
+			int choices = Integer.bitCount(masks[j]);
+			if(expanded.size() * choices > maxExpansion) {
+				return null;
+			}
+			ArrayList<byte[]> next = new ArrayList<byte[]>();
+			for(byte[] prefix : expanded) {
+				for(int code = 0; code < 4; code++) {
+					if((masks[j] & (1 << code)) != 0) {
+						byte[] copy = prefix.clone();
+						copy[j] = (byte)code;
+						next.add(copy);
+					}
+				}
+			}
+			expanded = next;
+		}
+		return expanded;
+	}
+	
+	public static byte[] compilePrimer(String seq) {
+		byte[] masks = new byte[seq.length()];
+		for(int i = 0; i < seq.length(); i++) {
+			char c = seq.charAt(i);
+			masks[i] = c < 128 ? baseMasks[c] : 0;
+		}
+		return masks;
+	}
+
+	// Pack the sample's files into a genome the sample keeps hold of, then search it
+	public void searchSample(Sample sample, List<String> files) throws IOException {
+		sample.setGenome(PackedGenome.readFasta(files));
+		searchGenome(sample, sample.getGenome());
+	}
+
+	// Search every contig of the packed genome, adding the hits to the sample under the name of the primer
+	public void searchGenome(Sample sample, PackedGenome genome) {
+		for(int c = 0; c < genome.getContigCount(); c++) {
+			if(automaton != null) {
+				scanContigExact(sample, genome, c);
+			}
+			if(maskPrimers.length > 0) {
+				scanContig(sample, genome, c);
+			}
+		}
+	}
+	
+	// Run the contig through the automaton once, straight from the packed words. An exception base cannot be part of an
+	// exact match, so it sends the automaton back to its root
+	private void scanContigExact(Sample sample, PackedGenome genome, int c) {
+		String contigID = genome.getContigName(c);
+		long offset = genome.getContigOffset(c);
+		int length = genome.getContigLength(c);
+		int exception = genome.nextException(offset);
+		long nextException = exception < genome.getExceptionCount() ? genome.getExceptionPosition(exception) : Long.MAX_VALUE;
+		long word = 0;
+		int state = 0;
+		for(int i = 0; i < length; i++) {
+			long position = offset + i;
+			if(i == 0 || (position & 31) == 0) {
+				word = genome.getWord((int)(position >>> 5));
+			}
+			if(position == nextException) {
+				state = 0;
+				exception++;
+				nextException = exception < genome.getExceptionCount() ? genome.getExceptionPosition(exception) : Long.MAX_VALUE;
+				continue;
+			}
+			state = automaton.next(state, (int)(word >>> (62 - 2 * (int)(position & 31))) & 3);
+			for(int k = automaton.getOutputStart(state); k < automaton.getOutputEnd(state); k++) {
+				int pattern = automaton.getOutput(k);
+				int primer = patternPrimers[pattern];
+				int start = i - automaton.getPatternLength(pattern) + 2;
+				sample.putBlastResult(primerIDs[primer], new BlastResult(sample.getName(), contigID, primerIDs[primer], 0,
+						start, i + 1, primerMasks[primer].length, patternReversed[pattern] ? primerRevComps[primer] : primerSeqs[primer],
+						patternReversed[pattern]));
+			}
+		}
+	}
+
+	// Slide every primer and its reverse complement along the contig. The packed words under each window are read once and
+	// shared by all the primers. Coordinates are reported 1-based on the plus strand of the contig, and minus strand hits carry
+	// the reverse complemented primer, as BLAST does for its sseq column
+	private void scanContig(Sample sample, PackedGenome genome, int c) {
+		String contigID = genome.getContigName(c);
+		long offset = genome.getContigOffset(c);
+		int length = genome.getContigLength(c);
+		long[] window = new long[maxWords];
+		int exception = genome.nextException(offset);
+		for(int pos = 0; pos + minLength <= length; pos++) {
+			long position = offset + pos;
+			for(int k = 0; k < maxWords && 32 * k < length - pos; k++) {
+				window[k] = genome.getWindow(position + 32 * k);
+			}
+			while(exception < genome.getExceptionCount() && genome.getExceptionPosition(exception) < position) {
+				exception++;
+			}
+			long nextException = exception < genome.getExceptionCount() ? genome.getExceptionPosition(exception) : Long.MAX_VALUE;
+			for(int p = 0; p < maskPrimers.length; p++) {
+				int i = maskPrimers[p];
+				int primerLength = forwardKernels[p].getLength();
+				if(pos + primerLength > length) {
+					continue;
+				}
+				int fwdMismatches, revMismatches;
+				if(nextException < position + primerLength) {
+					fwdMismatches = forwardKernels[p].countMismatchesScalar(genome, position, mismatches);
+					revMismatches = reverseKernels[p].countMismatchesScalar(genome, position, mismatches);
+				}else {
+					fwdMismatches = forwardKernels[p].countMismatches(window, mismatches);
+					revMismatches = reverseKernels[p].countMismatches(window, mismatches);
+				}
+				if(fwdMismatches <= mismatches) {
+					sample.putBlastResult(primerIDs[i], new BlastResult(sample.getName(), contigID, primerIDs[i], fwdMismatches,
+							pos + 1, pos + primerLength, primerLength, primerSeqs[i], false));
+				}
+				if(revMismatches <= mismatches) {
+					sample.putBlastResult(primerIDs[i], new BlastResult(sample.getName(), contigID, primerIDs[i], revMismatches,
+							pos + 1, pos + primerLength, primerLength, primerRevComps[i], true));
+				}
+			}
+		}
+	}
+
+	// Reverse complement, keeping degenerate bases as their complementary code
+	public static String reverseComplement(String seq) {
+		String bases = "ACGTRYSWKMBDHVN";
+		String complements = "TGCAYRSWMKVHDBN";
+		char[] revComp = new char[seq.length()];
+		for(int i = 0; i < seq.length(); i++) {
+			int index = bases.indexOf(Character.toUpperCase(seq.charAt(seq.length() - 1 - i)));
+			revComp[i] = index >= 0 ? complements.charAt(index) : 'N';
+		}
+		return new String(revComp);
+	}
+}
@@ -0,0 +1,93 @@
+package commandpcr;
+
+import insilicopcr.Sample;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+// Gathers the small fasta files of many samples into batches, so that thousands of plasmid sized genomes cost a few blastn
+// runs rather than one each. A batch is handed to the launcher once it holds maxBytes of sequence, or once no registered
+// sample is left that could still add to it, so the last batch never waits for a sample that will not come.
+public class QueryBatcher {
+
+	// Files smaller than this are batched, larger ones are worth a blastn of their own
+	public static final long smallQuery = 1 << 20;
+	// Between the index of a file in its batch and the contig ID, in the contig names of the batch query
+	public static final String separator = "__";
+
+	// One file of a batch and the sample it belongs to
+	public static class Query {
+
+		private Sample sample;
+		private String file;
+
+		public Query(Sample sample, String file) {
+			this.sample = sample;
+			this.file = file;
+		}
+
+		public Sample getSample() {
+			return this.sample;
+		}
+
+		public String getFile() {
+			return this.file;
+		}
+	}
+
+	private long maxBytes;
+	private Function<ArrayList<Query>, CompletableFuture<Void>> launcher;
+	private HashSet<Sample> outstanding = new HashSet<Sample>();
+	private ArrayList<Query> pending = new ArrayList<Query>();
+	private long pendingBytes = 0;
+	private CompletableFuture<Void> pendingDone = new CompletableFuture<Void>();
+
+	public QueryBatcher(long maxBytes, Function<ArrayList<Query>, CompletableFuture<Void>> launcher) {
+		this.maxBytes = maxBytes;
+		this.launcher = launcher;
+	}
+
+	// A sample that may add files later
+	public synchronized void register(Sample sample) {
+		outstanding.add(sample);
+	}
+
+	// Add a sample's small files, all to the same batch. The future completes once that batch has been searched
+	public synchronized CompletableFuture<Void> add(Sample sample, ArrayList<String> files) {
+		for(String file : files) {
+			pending.add(new Query(sample, file));
+			pendingBytes += new File(file).length();
+		}
+		CompletableFuture<Void> done = pendingDone;
+		outstanding.remove(sample);
+		if(pendingBytes >= maxBytes || outstanding.isEmpty()) {
+			flush();
+		}
+		return done;
+	}
+
+	// The sample will not add anything, either because it has added its files already or because it never reached the search
+	public synchronized void leave(Sample sample) {
+		if(outstanding.remove(sample) && outstanding.isEmpty() && !pending.isEmpty()) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		ArrayList<Query> batch = pending;
+		CompletableFuture<Void> done = pendingDone;
+		pending = new ArrayList<Query>();
+		pendingBytes = 0;
+		pendingDone = new CompletableFuture<Void>();
+		launcher.apply(batch).whenComplete((result, e) -> {
+			if(e != null) {
+				done.completeExceptionally(e);
+			}else {
+				done.complete(null);
+			}
+		});
+	}
+}
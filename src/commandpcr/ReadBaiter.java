@@ -0,0 +1,412 @@
+package commandpcr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Pure Java replacement for the first BBDuk pass. Every k-mer of every primer, with k the shortest primer length up to 31, is
+// expanded into the concrete sequences its degenerate bases allow and into every sequence within the permitted number of
+// mismatches, and stored in canonical form (the smaller of the k-mer and its reverse complement) so reads match on either
+// strand. A read pair is kept if either mate shares a k-mer with the set, as BBDuk does with outm. Reads are handled in
+// batches on a pool of threads, and matching pairs are written out interleaved in the order they were read. recruit also
+// does the second round of baiting in the same pass, so the raw reads are only read once.
+public class ReadBaiter {
+
+	private static final byte[] codes = new byte[256];
+	static {
+		Arrays.fill(codes, (byte)-1);
+		codes['A'] = 0;
+		codes['a'] = 0;
+		codes['C'] = 1;
+		codes['c'] = 1;
+		codes['G'] = 2;
+		codes['g'] = 2;
+		codes['T'] = 3;
+		codes['t'] = 3;
+	}
+
+	// A window of a primer with more concrete sequences than this is left out, other windows of the primer still bait
+	private static final int maxExpansion = 4096;
+	// The primer k-mers and their mismatch neighbourhoods together may not go past this, about 256 MB of set
+	private static final int maxKmers = 1 << 24;
+	private static final int batchRecords = 4096;
+	private static final int batchBytes = 4 << 20;
+	// The second round recruits reads by k-mers of this length, the BBDuk default, shared with the reads of the first round
+	private static final int recruitK = 27;
+	// Unmatched reads held back while the first round runs, so that they can be checked against the recruit k-mers once
+	// those are complete. Reads that fall out of it are read from the input again
+	private static final long rescanBytes = 256L << 20;
+
+	// One bit per read, addressed by a long so inputs past 2^31 reads are fine, where a BitSet would overflow
+	private static class LongBitmap {
+
+		private long[] words = new long[1024];
+
+		public void set(long index) {
+			long word = index >>> 6;
+			if(word >= words.length) {
+				if(word >= Integer.MAX_VALUE - 8) {
+					throw new IllegalArgumentException("Too many reads to track: " + index);
+				}
+				words = Arrays.copyOf(words, (int)Math.max(word + 1, Math.min(Integer.MAX_VALUE - 8, words.length * 2L)));
+			}
+			words[(int)word] |= 1L << (index & 63);
+		}
+
+		public boolean get(long index) {
+			long word = index >>> 6;
+			return word < words.length && (words[(int)word] & (1L << (index & 63))) != 0;
+		}
+	}
+
+	private int k;
+	private KmerSet kmers = new KmerSet();
+
+	// Throws IllegalArgumentException if the k-mers within the mismatches of the primers are more than maxKmers
+	public ReadBaiter(HashMap<String, String> primerDict, int mismatches) {
+		k = 31;
+		for(String key : primerDict.keySet()) {
+			k = Math.min(k, primerDict.get(key).length());
+		}
+		for(String key : primerDict.keySet()) {
+			byte[] masks = PrimerSearch.compilePrimer(primerDict.get(key).toUpperCase());
+			boolean added = false;
+			for(int start = 0; start + k <= masks.length; start++) {
+				added |= addWindow(masks, start, mismatches);
+			}
+			if(!added) {
+				System.out.println("Primer " + key + " is too degenerate to bait reads with");
+			}
+		}
+	}
+
+	// Add every concrete k-mer of the window and its mismatch neighbourhood. False if the window has too many expansions
+	private boolean addWindow(byte[] masks, int start, int mismatches) {
+		long expansions = 1;
+		for(int j = start; j < start + k; j++) {
+			expansions *= Math.max(1, Integer.bitCount(masks[j]));
+			if(expansions > maxExpansion) {
+				return false;
+			}
+		}
+		expand(masks, start, 0, 0L, mismatches);
+		return true;
+	}
+
+	private void expand(byte[] masks, int start, int j, long kmer, int mismatches) {
+		if(j == k) {
+			addNeighbours(kmer, 0, mismatches);
+			return;
+		}
+		int mask = masks[start + j];
+		if(mask == 0) {
+			// Not a base, any base is a mismatch there, so it costs one of the mismatches or the window is never matched
+			if(mismatches > 0) {
+				for(int code = 0; code < 4; code++) {
+					expand(masks, start, j + 1, (kmer << 2) | code, mismatches - 1);
+				}
+			}
+			return;
+		}
+		for(int code = 0; code < 4; code++) {
+			if((mask & (1 << code)) != 0) {
+				expand(masks, start, j + 1, (kmer << 2) | code, mismatches);
+			}
+		}
+	}
+
+	// Every k-mer with up to the given number of substitutions at or after position from, each one reached exactly once
+	private void addNeighbours(long kmer, int from, int mismatches) {
+		if(kmers.add(KmerSet.canonical(kmer, k)) && kmers.size() > maxKmers) {
+			throw new IllegalArgumentException("The primer k-mers within the allowed mismatches are over " + maxKmers 
+					+ ", too many to hold in memory");
+		}
+		if(mismatches == 0) {
+			return;
+		}
+		for(int j = from; j < k; j++) {
+			int shift = 2 * (k - 1 - j);
+			long current = (kmer >>> shift) & 3;
+			for(long code = 0; code < 4; code++) {
+				if(code != current) {
+					addNeighbours((kmer & ~(3L << shift)) | (code << shift), j + 1, mismatches - 1);
+				}
+			}
+		}
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getKmerCount() {
+		return kmers.size();
+	}
+
+	// True if the sequence shares a k-mer with the primer set on either strand
+	public boolean matches(byte[] data, int start, int end) {
+		return firstMatchEnd(kmers, k, data, start, end) >= 0;
+	}
+
+	// Offset just past the first k-mer of the sequence found in the primer set, or -1 if there is none
+	public int firstMatchEnd(byte[] data, int start, int end) {
+		return firstMatchEnd(kmers, k, data, start, end);
+	}
+
+	private static boolean matches(KmerSet set, int k, byte[] data, int start, int end) {
+		return firstMatchEnd(set, k, data, start, end) >= 0;
+	}
+
+	// Anything other than A, C, G or T breaks the k-mer
+	private static int firstMatchEnd(KmerSet set, int k, byte[] data, int start, int end) {
+		long mask = (1L << (2 * k)) - 1;
+		int shift = 2 * (k - 1);
+		long forward = 0;
+		long reverse = 0;
+		int valid = 0;
+		for(int i = start; i < end; i++) {
+			int code = codes[data[i] & 0xff];
+			if(code < 0) {
+				valid = 0;
+				continue;
+			}
+			forward = ((forward << 2) | code) & mask;
+			reverse = (reverse >>> 2) | ((long)(3 - code) << shift);
+			if(++valid >= k && set.contains(Math.min(forward, reverse))) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	// Add every canonical k-mer of the sequence to the set
+	private static void addKmers(KmerSet set, int k, byte[] data, int start, int end) {
+		long mask = (1L << (2 * k)) - 1;
+		int shift = 2 * (k - 1);
+		long forward = 0;
+		long reverse = 0;
+		int valid = 0;
+		for(int i = start; i < end; i++) {
+			int code = codes[data[i] & 0xff];
+			if(code < 0) {
+				valid = 0;
+				continue;
+			}
+			forward = ((forward << 2) | code) & mask;
+			reverse = (reverse >>> 2) | ((long)(3 - code) << shift);
+			if(++valid >= k) {
+				set.add(Math.min(forward, reverse));
+			}
+		}
+	}
+
+	// Mark the pairs in the batches where either mate matches. mates is null for single end reads
+	private void markBatch(FastqBatch reads, FastqBatch mates) {
+		for(int r = 0; r < reads.getCount(); r++) {
+			boolean match = matches(reads.getData(), reads.getSequenceStart(r), reads.getSequenceEnd(r));
+			if(!match && mates != null) {
+				match = matches(mates.getData(), mates.getSequenceStart(r), mates.getSequenceEnd(r));
+			}
+			reads.setMatched(r, match);
+		}
+	}
+
+	// Of the pairs not already kept, mark those where either mate shares a k-mer with the recruits, and unmark the rest
+	private static void markRecruits(FastqBatch reads, FastqBatch mates, KmerSet recruits) {
+		for(int r = 0; r < reads.getCount(); r++) {
+			boolean match = false;
+			if(!reads.isMatched(r)) {
+				match = matches(recruits, recruitK, reads.getData(), reads.getSequenceStart(r), reads.getSequenceEnd(r));
+				if(!match && mates != null) {
+					match = matches(recruits, recruitK, mates.getData(), mates.getSequenceStart(r), mates.getSequenceEnd(r));
+				}
+			}
+			reads.setMatched(r, match);
+		}
+	}
+
+	// Both rounds of baiting in a single pass over the input. Pairs matching the primers are kept and their k-mers collected
+	// as recruits. Once the input is done, every other pair is kept if it shares a recruit k-mer, which is what the second
+	// BBDuk pass finds by reading the input again with the first round's reads as its reference. Unmatched pairs are held in
+	// memory for that check, and only those pushed out of the buffer by a large input are read again. Writes the pairs of
+	// both rounds, uncompressed and interleaved, to out, and returns how many were kept. The pairs go to a file of their own
+	// beside out that is only moved over it once the input has been read in full, so out is never left cut short
+	public long recruit(List<String> files, String out, int threads) throws IOException {
+		File target = new File(out).getAbsoluteFile();
+		File temp = Files.createTempFile(target.getParentFile().toPath(), target.getName(), ".tmp").toFile();
+		try {
+			long kept;
+			try(OutputStream writer = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)){
+				kept = recruit(files, writer, threads);
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return kept;
+		}finally {
+			temp.delete();
+		}
+	}
+
+	private long recruit(List<String> files, OutputStream writer, int threads) throws IOException {
+		boolean paired = files.size() == 2;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		ArrayDeque<Future<FastqBatch[]>> pending = new ArrayDeque<Future<FastqBatch[]>>();
+		ArrayDeque<FastqBatch[]> free = new ArrayDeque<FastqBatch[]>();
+		ArrayDeque<FastqBatch[]> held = new ArrayDeque<FastqBatch[]>();
+		long heldBytes = 0;
+		long evicted = 0;
+		LongBitmap evictedMatches = new LongBitmap();
+		KmerSet recruits = new KmerSet();
+		int depth = Math.max(1, threads) * 2;
+		long kept = 0;
+		try {
+			try(FastqBatchReader reader = new FastqBatchReader(files.get(0), pool, threads);
+					FastqBatchReader mateReader = paired ? new FastqBatchReader(files.get(1), pool, threads) : null){
+				boolean reading = true;
+				while(reading || !pending.isEmpty()) {
+					if(reading) {
+						FastqBatch[] batches = free.isEmpty() ? new FastqBatch[] {new FastqBatch(), paired ? new FastqBatch() : null} : free.poll();
+						int count = reader.fill(batches[0], batchRecords, batchBytes);
+						if(paired && mateReader.fill(batches[1], count, Integer.MAX_VALUE) != count) {
+							throw new IOException("Paired files " + files.get(0) + " and " + files.get(1) + " have different numbers of reads");
+						}
+						if(count == 0) {
+							reading = false;
+						}else {
+							pending.add(pool.submit(() -> {
+								markBatch(batches[0], batches[1]);
+								return batches;
+							}));
+						}
+					}
+					if(pending.size() >= depth || (!reading && !pending.isEmpty())) {
+						// Recruit k-mers are only ever added here, on one thread, while the workers look at primer k-mers
+						FastqBatch[] done = take(pending.poll());
+						kept += write(done, writer);
+						for(int r = 0; r < done[0].getCount(); r++) {
+							if(done[0].isMatched(r)) {
+								addKmers(recruits, recruitK, done[0].getData(), done[0].getSequenceStart(r), done[0].getSequenceEnd(r));
+								if(paired) {
+									addKmers(recruits, recruitK, done[1].getData(), done[1].getSequenceStart(r), done[1].getSequenceEnd(r));
+								}
+							}
+						}
+						held.add(done);
+						heldBytes += batchSize(done);
+						while(heldBytes > rescanBytes && held.size() > 1) {
+							FastqBatch[] oldest = held.poll();
+							for(int r = 0; r < oldest[0].getCount(); r++) {
+								if(oldest[0].isMatched(r)) {
+									evictedMatches.set(evicted + r);
+								}
+							}
+							evicted += oldest[0].getCount();
+							heldBytes -= batchSize(oldest);
+							free.add(oldest);
+						}
+					}
+				}
+			}
+			
+			// The recruits are complete and only read from now on, so the held pairs can be checked in parallel
+			for(FastqBatch[] batches : held) {
+				pending.add(pool.submit(() -> {
+					markRecruits(batches[0], batches[1], recruits);
+					return batches;
+				}));
+			}
+			while(!pending.isEmpty()) {
+				kept += write(take(pending.poll()), writer);
+			}
+			held.clear();
+			
+			if(evicted > 0) {
+				kept += rescan(files, evicted, evictedMatches, recruits, pool, threads, writer);
+			}
+		}finally {
+			pool.shutdownNow();
+		}
+		return kept;
+	}
+
+	// Read the first records of the input again and keep the pairs that share a recruit k-mer, other than those the first
+	// round already kept
+	private long rescan(List<String> files, long records, LongBitmap firstRound, KmerSet recruits, ExecutorService pool, int threads, 
+			OutputStream writer) throws IOException {
+		boolean paired = files.size() == 2;
+		int depth = Math.max(1, threads) * 2;
+		ArrayDeque<Future<FastqBatch[]>> pending = new ArrayDeque<Future<FastqBatch[]>>();
+		ArrayDeque<FastqBatch[]> free = new ArrayDeque<FastqBatch[]>();
+		long kept = 0;
+		long read = 0;
+		try(FastqBatchReader reader = new FastqBatchReader(files.get(0), pool, threads);
+				FastqBatchReader mateReader = paired ? new FastqBatchReader(files.get(1), pool, threads) : null){
+			while(read < records) {
+				FastqBatch[] batches = free.isEmpty() ? new FastqBatch[] {new FastqBatch(), paired ? new FastqBatch() : null} : free.poll();
+				int count = reader.fill(batches[0], (int)Math.min(batchRecords, records - read), batchBytes);
+				if(paired) {
+					mateReader.fill(batches[1], count, Integer.MAX_VALUE);
+				}
+				if(count == 0) {
+					break;
+				}
+				for(int r = 0; r < count; r++) {
+					batches[0].setMatched(r, firstRound.get(read + r));
+				}
+				read += count;
+				pending.add(pool.submit(() -> {
+					markRecruits(batches[0], batches[1], recruits);
+					return batches;
+				}));
+				if(pending.size() >= depth) {
+					FastqBatch[] done = take(pending.poll());
+					kept += write(done, writer);
+					free.add(done);
+				}
+			}
+			while(!pending.isEmpty()) {
+				kept += write(take(pending.poll()), writer);
+			}
+		}
+		return kept;
+	}
+
+	private static long batchSize(FastqBatch[] batches) {
+		return batches[0].getLength() + (batches[1] == null ? 0 : batches[1].getLength());
+	}
+
+	private static FastqBatch[] take(Future<FastqBatch[]> future) throws IOException {
+		try {
+			return future.get();
+		}catch(InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static long write(FastqBatch[] batches, OutputStream writer) throws IOException {
+		FastqBatch reads = batches[0];
+		FastqBatch mates = batches[1];
+		long kept = 0;
+		for(int r = 0; r < reads.getCount(); r++) {
+			if(reads.isMatched(r)) {
+				writer.write(reads.getData(), reads.getStart(r), reads.getEnd(r) - reads.getStart(r));
+				if(mates != null) {
+					writer.write(mates.getData(), mates.getStart(r), mates.getEnd(r) - mates.getStart(r));
+				}
+				kept++;
+			}
+		}
+		return kept;
+	}
+}
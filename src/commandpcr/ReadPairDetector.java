@@ -0,0 +1,313 @@
+package commandpcr;
+
+import insilicopcr.AmpliconSupport;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Finds products straight from the read pairs of a FastQ sample, with no baiting, assembly or BLAST. A pair supports a gene
+// when its forward and reverse primers are laid out as a product would be sequenced: both on one read, the forward primer
+// upstream of the reverse complement of the reverse primer, or one primer at the start of each mate, as each mate reads
+// inwards from one end of the fragment. The size is exact when both primers are on one read or the mates overlap, and
+// otherwise a lower bound. Only pairs that share a k-mer with the primers, as ReadBaiter finds, are checked primer by primer.
+public class ReadPairDetector {
+
+	private static final byte[] readMasks = new byte[256];
+	static {
+		readMasks['A'] = 1;
+		readMasks['a'] = 1;
+		readMasks['C'] = 2;
+		readMasks['c'] = 2;
+		readMasks['G'] = 4;
+		readMasks['g'] = 4;
+		readMasks['T'] = 8;
+		readMasks['t'] = 8;
+	}
+
+	// The mates must overlap by at least this much, with at most one mismatch in ten bases, to give an exact fragment length
+	private static final int minOverlap = 16;
+	private static final int batchRecords = 4096;
+	private static final int batchBytes = 4 << 20;
+
+	private ReadBaiter baiter;
+	private int mismatches;
+	private int maxAmpliconLength;
+	private String[] primerIDs;
+	private byte[][] forwardMasks;
+	private byte[][] reverseMasks;
+	private String[] genes;
+	private int[][] geneForward;
+	private int[][] geneReverse;
+	private int[][] geneProbes;
+
+	public ReadPairDetector(HashMap<String, String> primerDict, ReadBaiter baiter, int mismatches, int maxAmpliconLength) {
+		this.baiter = baiter;
+		this.mismatches = mismatches;
+		this.maxAmpliconLength = maxAmpliconLength;
+		primerIDs = primerDict.keySet().toArray(new String[primerDict.size()]);
+		forwardMasks = new byte[primerIDs.length][];
+		reverseMasks = new byte[primerIDs.length][];
+
+		// Primers are grouped under their gene the same way makeConsolidatedReport groups the hits
+		HashMap<String, ArrayList<ArrayList<Integer>>> byGene = new HashMap<String, ArrayList<ArrayList<Integer>>>();
+		for(int i = 0; i < primerIDs.length; i++) {
+			String seq = primerDict.get(primerIDs[i]).toUpperCase();
+			forwardMasks[i] = PrimerSearch.compilePrimer(seq);
+			reverseMasks[i] = PrimerSearch.compilePrimer(PrimerSearch.reverseComplement(seq));
+			String[] splitPrimer = primerIDs[i].split("-");
+			String direction = splitPrimer[splitPrimer.length - 1];
+			String gene = String.join("-", Arrays.copyOfRange(splitPrimer, 0, splitPrimer.length - 1));
+			int type = "FRP".indexOf(direction.isEmpty() ? ' ' : direction.charAt(0));
+			if(type < 0) {
+				continue;
+			}
+			if(!byGene.containsKey(gene)) {
+				ArrayList<ArrayList<Integer>> lists = new ArrayList<ArrayList<Integer>>();
+				for(int t = 0; t < 3; t++) {
+					lists.add(new ArrayList<Integer>());
+				}
+				byGene.put(gene, lists);
+			}
+			byGene.get(gene).get(type).add(i);
+		}
+		genes = byGene.keySet().toArray(new String[byGene.size()]);
+		geneForward = new int[genes.length][];
+		geneReverse = new int[genes.length][];
+		geneProbes = new int[genes.length][];
+		for(int g = 0; g < genes.length; g++) {
+			geneForward[g] = toArray(byGene.get(genes[g]).get(0));
+			geneReverse[g] = toArray(byGene.get(genes[g]).get(1));
+			geneProbes[g] = toArray(byGene.get(genes[g]).get(2));
+		}
+	}
+
+	private static int[] toArray(ArrayList<Integer> list) {
+		int[] array = new int[list.size()];
+		for(int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	// Count the supporting pairs of every gene over one or two (paired) FastQ files
+	public HashMap<String, AmpliconSupport> detect(List<String> files, int threads) throws IOException {
+		boolean paired = files.size() == 2;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		ArrayDeque<Future<HashMap<String, AmpliconSupport>>> pending = new ArrayDeque<Future<HashMap<String, AmpliconSupport>>>();
+		ArrayDeque<FastqBatch[]> inFlight = new ArrayDeque<FastqBatch[]>();
+		ArrayDeque<FastqBatch[]> free = new ArrayDeque<FastqBatch[]>();
+		HashMap<String, AmpliconSupport> support = new HashMap<String, AmpliconSupport>();
+		int depth = Math.max(1, threads) * 2;
+		try(FastqBatchReader reader = new FastqBatchReader(files.get(0), pool, threads);
+				FastqBatchReader mateReader = paired ? new FastqBatchReader(files.get(1), pool, threads) : null){
+			while(true) {
+				FastqBatch[] batches = free.isEmpty() ? new FastqBatch[] {new FastqBatch(), paired ? new FastqBatch() : null} : free.poll();
+				int count = reader.fill(batches[0], batchRecords, batchBytes);
+				if(paired && mateReader.fill(batches[1], count, Integer.MAX_VALUE) != count) {
+					throw new IOException("Paired files " + files.get(0) + " and " + files.get(1) + " have different numbers of reads");
+				}
+				if(count == 0) {
+					break;
+				}
+				pending.add(pool.submit(() -> detectBatch(batches[0], batches[1])));
+				inFlight.add(batches);
+				if(pending.size() >= depth) {
+					merge(support, take(pending.poll()));
+					free.add(inFlight.poll());
+				}
+			}
+			while(!pending.isEmpty()) {
+				merge(support, take(pending.poll()));
+			}
+		}finally {
+			pool.shutdownNow();
+		}
+		return support;
+	}
+
+	private static HashMap<String, AmpliconSupport> take(Future<HashMap<String, AmpliconSupport>> future) throws IOException {
+		try {
+			return future.get();
+		}catch(InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void merge(HashMap<String, AmpliconSupport> into, HashMap<String, AmpliconSupport> from) {
+		for(String gene : from.keySet()) {
+			if(into.containsKey(gene)) {
+				into.get(gene).merge(from.get(gene));
+			}else {
+				into.put(gene, from.get(gene));
+			}
+		}
+	}
+
+	private HashMap<String, AmpliconSupport> detectBatch(FastqBatch reads, FastqBatch mates) {
+		HashMap<String, AmpliconSupport> support = new HashMap<String, AmpliconSupport>();
+		int[] hitsA = new int[4 * primerIDs.length];
+		int[] hitsB = new int[4 * primerIDs.length];
+		for(int r = 0; r < reads.getCount(); r++) {
+			byte[] dataA = reads.getData();
+			int startA = reads.getSequenceStart(r);
+			int endA = reads.getSequenceEnd(r);
+			byte[] dataB = mates == null ? null : mates.getData();
+			int startB = mates == null ? 0 : mates.getSequenceStart(r);
+			int endB = mates == null ? 0 : mates.getSequenceEnd(r);
+			if(!baiter.matches(dataA, startA, endA) && (mates == null || !baiter.matches(dataB, startB, endB))) {
+				continue;
+			}
+			findHits(dataA, startA, endA, hitsA);
+			if(mates == null) {
+				Arrays.fill(hitsB, -1);
+			}else {
+				findHits(dataB, startB, endB, hitsB);
+			}
+			int fragment = -2;
+			for(int g = 0; g < genes.length; g++) {
+				int[] best = null;
+				for(int f : geneForward[g]) {
+					for(int rv : geneReverse[g]) {
+						int[] layout = layout(f, rv, hitsA, endA - startA, hitsB, endB - startB);
+						if(layout == null) {
+							continue;
+						}
+						if(layout[1] == 0 && fragment == -2) {
+							fragment = overlapFragment(dataA, startA, endA, dataB, startB, endB);
+						}
+						if(layout[1] == 0 && fragment > 0) {
+							// Mates overlap, so the fragment length and with it the size are known
+							layout[0] = fragment - layout[2];
+							layout[1] = 1;
+						}else if(layout[1] == 0) {
+							// Mates that do not overlap by minOverlap could still overlap by a little less
+							layout[0] = (endA - startA) + (endB - startB) - (minOverlap - 1) - layout[2];
+						}
+						if(layout[0] <= 0 || layout[0] > maxAmpliconLength) {
+							continue;
+						}
+						if(best == null || (layout[1] == 1 && best[1] == 0)) {
+							best = new int[] {layout[0], layout[1], f, rv};
+						}
+					}
+				}
+				if(best == null) {
+					continue;
+				}
+				if(!support.containsKey(genes[g])) {
+					support.put(genes[g], new AmpliconSupport(genes[g]));
+				}
+				AmpliconSupport gene = support.get(genes[g]);
+				gene.addPair(best[0], best[1] == 1, primerIDs[best[2]], minMismatch(best[2], hitsA, hitsB), primerIDs[best[3]],
+						minMismatch(best[3], hitsA, hitsB));
+				for(int p : geneProbes[g]) {
+					int probeMismatch = minMismatch(p, hitsA, hitsB);
+					if(probeMismatch <= mismatches) {
+						gene.addProbe(primerIDs[p], forwardMasks[p].length, probeMismatch);
+					}
+				}
+			}
+		}
+		return support;
+	}
+
+	// How the forward primer f and reverse primer r sit on the pair, as {size, exact, offsets}, or null if not as a product.
+	// For a product across the mates, exact is 0 and offsets is how far into its mate each primer starts, so that the size is
+	// the fragment length less the offsets
+	private int[] layout(int f, int r, int[] hitsA, int lengthA, int[] hitsB, int lengthB) {
+		int lengthF = forwardMasks[f].length;
+		int lengthR = forwardMasks[r].length;
+		// Both primers on one read, the product read in either direction
+		for(int[] hits : new int[][] {hitsA, hitsB}) {
+			if(hits[4 * f] >= 0 && hits[4 * r + 2] >= hits[4 * f]) {
+				return new int[] {hits[4 * r + 2] + lengthR - hits[4 * f], 1, 0};
+			}
+			if(hits[4 * r] >= 0 && hits[4 * f + 2] >= hits[4 * r]) {
+				return new int[] {hits[4 * f + 2] + lengthF - hits[4 * r], 1, 0};
+			}
+		}
+		// One primer at the start of each mate
+		if(hitsA[4 * f] >= 0 && hitsB[4 * r] >= 0) {
+			return new int[] {0, 0, hitsA[4 * f] + hitsB[4 * r]};
+		}
+		if(hitsB[4 * f] >= 0 && hitsA[4 * r] >= 0) {
+			return new int[] {0, 0, hitsB[4 * f] + hitsA[4 * r]};
+		}
+		return null;
+	}
+
+	private static int minMismatch(int primer, int[] hitsA, int[] hitsB) {
+		int best = Integer.MAX_VALUE;
+		for(int[] hits : new int[][] {hitsA, hitsB}) {
+			if(hits[4 * primer] >= 0) {
+				best = Math.min(best, hits[4 * primer + 1]);
+			}
+			if(hits[4 * primer + 2] >= 0) {
+				best = Math.min(best, hits[4 * primer + 3]);
+			}
+		}
+		return best;
+	}
+
+	// For every primer, the offset and mismatches of its best hit on the read as written and of its best hit as the reverse
+	// complement, -1 where there is none
+	private void findHits(byte[] data, int start, int end, int[] hits) {
+		for(int i = 0; i < primerIDs.length; i++) {
+			bestHit(forwardMasks[i], data, start, end, hits, 4 * i);
+			bestHit(reverseMasks[i], data, start, end, hits, 4 * i + 2);
+		}
+	}
+
+	private void bestHit(byte[] masks, byte[] data, int start, int end, int[] hits, int slot) {
+		hits[slot] = -1;
+		hits[slot + 1] = Integer.MAX_VALUE;
+		for(int p = start; p + masks.length <= end; p++) {
+			int count = 0;
+			for(int j = 0; j < masks.length && count <= mismatches; j++) {
+				if((masks[j] & readMasks[data[p + j] & 0xff]) == 0) {
+					count++;
+				}
+			}
+			if(count <= mismatches && count < hits[slot + 1]) {
+				hits[slot] = p - start;
+				hits[slot + 1] = count;
+				if(count == 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	// Length of the fragment if the end of mate A overlaps the reverse complement of mate B, otherwise -1
+	private static int overlapFragment(byte[] dataA, int startA, int endA, byte[] dataB, int startB, int endB) {
+		if(dataB == null) {
+			return -1;
+		}
+		int lengthA = endA - startA;
+		int lengthB = endB - startB;
+		for(int overlap = Math.min(lengthA, lengthB); overlap >= minOverlap; overlap--) {
+			int allowed = overlap / 10;
+			int count = 0;
+			for(int i = 0; i < overlap && count <= allowed; i++) {
+				int a = readMasks[dataA[endA - overlap + i] & 0xff];
+				int b = readMasks[dataB[endB - 1 - i] & 0xff];
+				// A matches B's complement when A's bit is B's bit reversed, A=1 with T=8 and C=2 with G=4
+				if(a == 0 || a != (((b & 1) << 3) | ((b & 2) << 1) | ((b & 4) >> 1) | ((b & 8) >> 3))) {
+					count++;
+				}
+			}
+			if(count <= allowed) {
+				return lengthA + lengthB - overlap;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,241 @@
+package commandpcr;
+
+import insilicopcr.BlastResult;
+import insilicopcr.FastaIndex;
+import insilicopcr.Sample;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+
+// Search results of earlier runs, kept in a directory and looked up by content. A sample's key is the SHA-256 of the content
+// of its input files together with the panel key, which covers the processed primers, the mismatches and the program version
+// and search engine that produced the hits, and for a fastq sample the baiting and assembly engines as well. A sample whose
+// key is found skips baiting, assembly and the search, and takes its hits and the descriptions of the contigs they are on
+// from the cache. Content hashes are remembered against each file's path, size and modification time, so an unchanged input
+// is not read again on the next run.
+public class ResultCache {
+
+	private static final String fileHashesName = "file_hashes.properties";
+
+	private File dir;
+	private String panelKey;
+	private String readEngine;
+	private Properties fileHashes = new Properties();
+
+	public ResultCache(File dir, HashMap<String, String> primerDict, int mismatches, String searchEngine, String readEngine) {
+		this.dir = dir;
+		this.readEngine = readEngine;
+		dir.mkdirs();
+		panelKey = settingsKey(primerDict, mismatches, searchEngine);
+		File hashesFile = new File(dir, fileHashesName);
+		if(hashesFile.exists()) {
+			try(InputStream in = new FileInputStream(hashesFile)){
+				fileHashes.load(in);
+			}catch(IOException e) {
+				fileHashes.clear();
+			}
+		}
+	}
+
+	// SHA-256 of the processed primers, sorted so the order of the primer file does not matter, the mismatches and the engines
+	public static String settingsKey(HashMap<String, String> primerDict, int mismatches, String engine) {
+		ArrayList<String> primers = new ArrayList<String>();
+		for(String key : primerDict.keySet()) {
+			primers.add(key + "\t" + primerDict.get(key).toUpperCase());
+		}
+		Collections.sort(primers);
+		StringBuilder panel = new StringBuilder();
+		for(String primer : primers) {
+			panel.append(primer).append("\n");
+		}
+		panel.append("mismatches=").append(mismatches).append("\n");
+		panel.append("engine=").append(engine).append("\n");
+		return hash(panel.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	// The key of a sample's results, or null if one of its files could not be read
+	public String sampleKey(Sample sample) {
+		ArrayList<String> contentHashes = new ArrayList<String>();
+		for(String file : sample.getFiles()) {
+			try {
+				contentHashes.add(contentHash(new File(file)));
+			}catch(IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		// Files of a sample are searched as one, so their order does not matter
+		Collections.sort(contentHashes);
+		String stages = sample.getFileType().equals("fastq") ? readEngine : "";
+		return hash((panelKey + "\n" + stages + "\n" + String.join("\n", contentHashes)).getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Fill the sample in from the cache. Returns false if there is nothing cached under the key
+	public boolean load(Sample sample, String key) {
+		if(key == null) {
+			return false;
+		}
+		File entry = new File(dir, key + ".tsv");
+		if(!entry.exists()) {
+			return false;
+		}
+		try {
+			readResults(sample, entry);
+		}catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	// Save the results of a sample under its key. Only called once its search succeeded, or the cache would hand the failed
+	// search to every later run over the same content
+	public void store(Sample sample, String key, ArrayList<String> searchedFiles) {
+		if(key == null) {
+			return;
+		}
+		try {
+			writeResults(sample, searchedFiles, new File(dir, key + ".tsv"));
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Save the remembered content hashes for the next run
+	public void close() {
+		File hashesFile = new File(dir, fileHashesName);
+		File temp = null;
+		try {
+			temp = Files.createTempFile(dir.toPath(), fileHashesName, ".tmp").toFile();
+			try(OutputStream out = new FileOutputStream(temp)){
+				fileHashes.store(out, "Content hashes of input files");
+			}
+			Files.move(temp.toPath(), hashesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			if(temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	// Write every hit of the sample and the description of each contig with a hit, read from the searched fasta files, as
+	// "hit" and "contig" rows. Written to a file of its own beside the target and moved over it, so the file is either whole
+	// or not there, even when two samples of the same content write the same target at once
+	public static void writeResults(Sample sample, ArrayList<String> searchedFiles, File target) throws IOException {
+		HashSet<String> contigs = new HashSet<String>();
+		File temp = Files.createTempFile(target.getAbsoluteFile().getParentFile().toPath(), target.getName(), ".tmp").toFile();
+		try {
+			try(BufferedWriter writer = new BufferedWriter(new FileWriter(temp))){
+				HashMap<String, ArrayList<BlastResult>> blastResults = sample.getBlastResults();
+				for(String primer : blastResults.keySet()) {
+					for(BlastResult result : blastResults.get(primer)) {
+						writer.write(String.join("\t", new String[] {"hit", result.getQueryID(), result.getSubjectID(),
+								Integer.toString(result.getMismatch()), Integer.toString(result.getStart()), Integer.toString(result.getEnd()),
+								Integer.toString(result.getLength()), result.getSeq(), Boolean.toString(result.isMinusStrand())}));
+						writer.write("\n");
+						contigs.add(result.getQueryID());
+					}
+				}
+				if(!contigs.isEmpty()) {
+					FastaIndex index = new FastaIndex(searchedFiles);
+					for(String contig : contigs) {
+						writer.write("contig\t" + contig + "\t" + index.getDescription(contig) + "\n");
+					}
+				}
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally {
+			temp.delete();
+		}
+	}
+
+	// Put the hits and contig descriptions written by writeResults back into the sample. The whole file is parsed before
+	// any of it goes into the sample, so a file that cannot be read leaves the sample as it was
+	public static void readResults(Sample sample, File source) throws IOException {
+		ArrayList<BlastResult> hits = new ArrayList<BlastResult>();
+		HashMap<String, String> contigs = new HashMap<String, String>();
+		String line;
+		try(BufferedReader reader = new BufferedReader(new FileReader(source))){
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if(fields[0].equals("hit")) {
+					hits.add(new BlastResult(sample.getName(), fields[1], fields[2], Integer.parseInt(fields[3]),
+							Integer.parseInt(fields[4]), Integer.parseInt(fields[5]), Integer.parseInt(fields[6]), fields[7],
+							Boolean.parseBoolean(fields[8])));
+				}else if(fields[0].equals("contig")) {
+					contigs.put(fields[1], line.substring(fields[0].length() + fields[1].length() + 2));
+				}
+			}
+		}catch(RuntimeException e) {
+			throw new IOException("Could not parse " + source, e);
+		}
+		for(BlastResult hit : hits) {
+			sample.putBlastResult(hit.getSubjectID(), hit);
+		}
+		for(String contig : contigs.keySet()) {
+			sample.addContig(contig, contigs.get(contig));
+		}
+	}
+
+	// SHA-256 of the file's content, remembered against its path, size and modification time
+	private String contentHash(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		String stamp = file.length() + ":" + file.lastModified();
+		String remembered = fileHashes.getProperty(path);
+		if(remembered != null && remembered.startsWith(stamp + ":")) {
+			return remembered.substring(stamp.length() + 1);
+		}
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[1 << 20];
+		try(InputStream in = new FileInputStream(file)){
+			int n;
+			while((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		String contentHash = hex(digest.digest());
+		fileHashes.setProperty(path, stamp + ":" + contentHash);
+		return contentHash;
+	}
+
+	private static String hash(byte[] bytes) {
+		return hex(newDigest().digest(bytes));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e) {
+			// Every Java runtime is required to have SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] out = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			out[2 * i] = digits[(bytes[i] >> 4) & 15];
+			out[2 * i + 1] = digits[bytes[i] & 15];
+		}
+		return new String(out);
+	}
+}
@@ -0,0 +1,90 @@
+package commandpcr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+
+// The stages of one sample that have finished, kept in the sample's detailed report directory so that a rerun into the same
+// output directory picks the sample up at its first unfinished stage. A stage is recorded with a fingerprint of the run's
+// settings and the path, size and modification time of each of its inputs, and with the size and modification time of each
+// of its outputs. It only counts as done while both still match, so a stage is run again when an input changed, when an
+// earlier stage was run again, or when one of its outputs was touched. The journal is rewritten whole and moved into place
+// after every stage, so a run killed part way never leaves a stage marked done that was not.
+public class StageJournal {
+
+	private File file;
+	private String runKey;
+	private Properties entries = new Properties();
+
+	public StageJournal(File file, String runKey) {
+		this.file = file;
+		this.runKey = runKey;
+		if(file.exists()) {
+			try(InputStream in = new FileInputStream(file)){
+				entries.load(in);
+			}catch(IOException e) {
+				entries.clear();
+			}
+		}
+	}
+
+	// Whether the stage finished before over the same inputs, and left its outputs as they are now
+	public synchronized boolean isComplete(String stage, List<String> inputs, List<String> outputs) {
+		String fingerprint = entries.getProperty(stage + ".inputs");
+		if(fingerprint == null || !fingerprint.equals(fingerprint(inputs))) {
+			return false;
+		}
+		String recorded = entries.getProperty(stage + ".outputs");
+		return recorded != null && recorded.equals(stamps(outputs));
+	}
+
+	// Mark the stage done. Nothing is recorded if one of its outputs was never written
+	public synchronized void complete(String stage, List<String> inputs, List<String> outputs) {
+		String outputStamps = stamps(outputs);
+		if(outputStamps == null) {
+			return;
+		}
+		entries.setProperty(stage + ".inputs", fingerprint(inputs));
+		entries.setProperty(stage + ".outputs", outputStamps);
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try(OutputStream out = new FileOutputStream(temp)){
+				entries.store(out, "Finished stages");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		}
+	}
+
+	private String fingerprint(List<String> inputs) {
+		StringBuilder fingerprint = new StringBuilder(runKey);
+		for(String input : inputs) {
+			File inputFile = new File(input);
+			fingerprint.append("|").append(inputFile.getAbsolutePath()).append(":").append(inputFile.length()).append(":")
+					.append(inputFile.lastModified());
+		}
+		return fingerprint.toString();
+	}
+
+	// The size and modification time of every output, or null if one of them is missing
+	private static String stamps(List<String> outputs) {
+		StringBuilder stamps = new StringBuilder();
+		for(String output : outputs) {
+			File outputFile = new File(output);
+			if(!outputFile.isFile()) {
+				return null;
+			}
+			stamps.append(outputFile.getName()).append(":").append(outputFile.length()).append(":").append(outputFile.lastModified()).append("|");
+		}
+		return stamps.toString();
+	}
+}
@@ -0,0 +1,183 @@
+package commandpcr;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+// Pure Java replacement for Tadpole that only assembles around the primer sites. Every 31-mer of the baited reads is counted,
+// then each read that carries a primer k-mer gives a seed, the read's 31-mer over the primer hit. Seeds are extended one base
+// at a time in both directions through the de Bruijn graph of the counted k-mers, for no more than the maximum amplicon
+// length each way, which is as far as the partner primer of a reported product can be. Extension takes the most frequent next
+// k-mer and stops when it is too rare to trust, when it is not clearly ahead of the runner up, or when it was already used,
+// so a site seeded by many reads still gives one contig.
+public class TargetedAssembler {
+
+	private static final int k = 31;
+	private static final long mask = (1L << (2 * k)) - 1;
+	// A k-mer seen fewer times than this is taken to be a read error
+	private static final int minCount = 2;
+	// The best next k-mer must be seen this many times as often as the runner up, otherwise the contig stops at the branch
+	private static final int branchRatio = 3;
+
+	private static final byte[] codes = new byte[256];
+	static {
+		Arrays.fill(codes, (byte)-1);
+		codes['A'] = 0;
+		codes['a'] = 0;
+		codes['C'] = 1;
+		codes['c'] = 1;
+		codes['G'] = 2;
+		codes['g'] = 2;
+		codes['T'] = 3;
+		codes['t'] = 3;
+	}
+
+	private ReadBaiter primers;
+	private int maxExtension;
+
+	public TargetedAssembler(ReadBaiter primers, int maxExtension) {
+		this.primers = primers;
+		this.maxExtension = maxExtension;
+	}
+
+	// Assemble the reads of a FastQ file, plain or gzipped, into contigs around the primer sites written to out as fasta.
+	// Returns the number of contigs
+	public int assemble(String reads, String out) throws IOException {
+		KmerCounts counts = new KmerCounts();
+		long[] seeds = new long[64];
+		int seedCount = 0;
+		FastqBatch batch = new FastqBatch();
+		try(FastqBatchReader reader = new FastqBatchReader(reads)){
+			while(reader.fill(batch, 4096, 4 << 20) > 0) {
+				byte[] data = batch.getData();
+				for(int r = 0; r < batch.getCount(); r++) {
+					int start = batch.getSequenceStart(r);
+					int end = batch.getSequenceEnd(r);
+					countKmers(counts, data, start, end);
+					int hitEnd = primers.firstMatchEnd(data, start, end);
+					if(hitEnd < 0 || end - start < k) {
+						continue;
+					}
+					// The 31-mer covering the primer k-mer, pulled back inside the read where the hit is near an end
+					int seedStart = Math.max(start, Math.min(hitEnd - primers.getK(), end - k));
+					long seed = encode(data, seedStart);
+					if(seed >= 0) {
+						if(seedCount == seeds.length) {
+							seeds = Arrays.copyOf(seeds, seedCount * 2);
+						}
+						seeds[seedCount++] = seed;
+					}
+				}
+			}
+		}
+
+		KmerSet used = new KmerSet();
+		int contigs = 0;
+		byte[] contig = new byte[k + 2 * maxExtension + 2];
+		// Written beside out and moved over it once complete, so a failed assembly never leaves a partial out behind
+		File target = new File(out).getAbsoluteFile();
+		File temp = Files.createTempFile(target.getParentFile().toPath(), target.getName(), ".tmp").toFile();
+		try(BufferedWriter writer = new BufferedWriter(new FileWriter(temp))){
+			for(int s = 0; s < seedCount; s++) {
+				long seed = KmerSet.canonical(seeds[s], k);
+				if(counts.get(seed) < minCount || !used.add(seed)) {
+					continue;
+				}
+				for(int j = 0; j < k; j++) {
+					contig[j] = (byte)((seeds[s] >>> (2 * (k - 1 - j))) & 3);
+				}
+				int length = extendRight(contig, k, counts, used);
+				reverseComplement(contig, length);
+				length = extendRight(contig, length, counts, used);
+				reverseComplement(contig, length);
+				writer.write(">contig_" + contigs + " length=" + length + "\n");
+				char[] bases = new char[length];
+				for(int j = 0; j < length; j++) {
+					bases[j] = "ACGT".charAt(contig[j]);
+				}
+				writer.write(bases);
+				writer.write("\n");
+				contigs++;
+			}
+			writer.close();
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally {
+			temp.delete();
+		}
+		return contigs;
+	}
+
+	private static void countKmers(KmerCounts counts, byte[] data, int start, int end) {
+		long forward = 0;
+		int valid = 0;
+		for(int i = start; i < end; i++) {
+			int code = codes[data[i] & 0xff];
+			if(code < 0) {
+				valid = 0;
+				continue;
+			}
+			forward = ((forward << 2) | code) & mask;
+			if(++valid >= k) {
+				counts.increment(KmerSet.canonical(forward, k));
+			}
+		}
+	}
+
+	// The 31-mer starting at the offset, or -1 if it holds anything other than A, C, G or T
+	private static long encode(byte[] data, int start) {
+		long kmer = 0;
+		for(int i = start; i < start + k; i++) {
+			int code = codes[data[i] & 0xff];
+			if(code < 0) {
+				return -1;
+			}
+			kmer = (kmer << 2) | code;
+		}
+		return kmer;
+	}
+
+	// Extend the contig of base codes to the right, for at most maxExtension bases, and return its new length
+	private int extendRight(byte[] contig, int length, KmerCounts counts, KmerSet used) {
+		long kmer = 0;
+		for(int j = length - k; j < length; j++) {
+			kmer = (kmer << 2) | contig[j];
+		}
+		for(int added = 0; added < maxExtension && length < contig.length; added++) {
+			int best = -1;
+			int bestCount = 0;
+			int secondCount = 0;
+			for(int code = 0; code < 4; code++) {
+				int count = counts.get(KmerSet.canonical(((kmer << 2) | code) & mask, k));
+				if(count > bestCount) {
+					secondCount = bestCount;
+					bestCount = count;
+					best = code;
+				}else if(count > secondCount) {
+					secondCount = count;
+				}
+			}
+			if(bestCount < minCount || (secondCount >= minCount && bestCount < branchRatio * secondCount)) {
+				break;
+			}
+			long next = ((kmer << 2) | best) & mask;
+			if(!used.add(KmerSet.canonical(next, k))) {
+				break;
+			}
+			contig[length++] = (byte)best;
+			kmer = next;
+		}
+		return length;
+	}
+
+	private static void reverseComplement(byte[] contig, int length) {
+		for(int i = 0, j = length - 1; i <= j; i++, j--) {
+			byte left = contig[i];
+			contig[i] = (byte)(3 - contig[j]);
+			contig[j] = (byte)(3 - left);
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package dispatchpcr;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.apache.commons.cli.*;
 
@@ -23,7 +25,7 @@ public class Dispatcher {
 		output.setRequired(false);
 		options.addOption(output);
 		
-		Option primerInput = new Option("p", "primers", true, "The custom primer file containing the putative PCR primers");
+		Option primerInput = new Option("p", "primers", true, "The custom primer file containing the putative PCR primers, or several separated by commas to screen each as a panel with its own report");
 		primerInput.setRequired(false);
 		options.addOption(primerInput);
 		
@@ -35,6 +37,54 @@ public class Dispatcher {
 		numMismatches.setRequired(false);
 		options.addOption(numMismatches);
 		
+		Option searchEngine = new Option("s", "search", true, "The primer search engine to use, either blast or native. Default is blast.");
+		searchEngine.setRequired(false);
+		options.addOption(searchEngine);
+		
+		Option ampliconLength = new Option("l", "length", true, "The maximum amplicon length reported. Default is 10000.");
+		ampliconLength.setRequired(false);
+		options.addOption(ampliconLength);
+		
+		Option noDetail = new Option("n", "nodetail", false, "Do not write the detailed BLAST .tsv file for each input.");
+		noDetail.setRequired(false);
+		options.addOption(noDetail);
+		
+		Option inProcess = new Option("j", "inprocess", false, "Run BBDuk and Tadpole inside this JVM instead of starting a JVM for each call. Jobs run one at a time, each with the whole heap set by -Xmx.");
+		inProcess.setRequired(false);
+		options.addOption(inProcess);
+		
+		Option baitEngine = new Option("b", "bait", true, "The engine for baiting fastq reads, either bbduk or native, which does both rounds in one pass. Default is bbduk.");
+		baitEngine.setRequired(false);
+		options.addOption(baitEngine);
+		
+		Option assembler = new Option("a", "assembler", true, "The assembler for baited fastq reads, either tadpole or targeted, which only assembles around primer sites. Default is tadpole.");
+		assembler.setRequired(false);
+		options.addOption(assembler);
+		
+		Option readPairs = new Option("r", "readpairs", false, "Screen fastq samples straight from their read pairs, without baiting or assembly.");
+		readPairs.setRequired(false);
+		options.addOption(readPairs);
+		
+		Option orientation = new Option("d", "orientation", true, "Which side of the BLAST search is the database, either primers, genome, or auto, which uses genome for genomes of 16 MB or more. Default is primers.");
+		orientation.setRequired(false);
+		options.addOption(orientation);
+		
+		Option cache = new Option("c", "cache", true, "A directory of search results and primer databases kept between runs, reused for inputs searched before with the same primers and settings.");
+		cache.setRequired(false);
+		options.addOption(cache);
+		
+		Option bbtoolsDir = new Option("B", "bbtools", true, "The directory holding tadpole.sh and bbduk.sh. Default is found in the install directory, or INSILICOPCR_BBTOOLS.");
+		bbtoolsDir.setRequired(false);
+		options.addOption(bbtoolsDir);
+		
+		Option blastDir = new Option("L", "blast", true, "The directory holding blastn and makeblastdb. Default is found in the install directory, or INSILICOPCR_BLAST.");
+		blastDir.setRequired(false);
+		options.addOption(blastDir);
+		
+		Option javaDir = new Option("J", "java", true, "The directory holding the java executable for BBTools. Default is found in the install directory, or INSILICOPCR_JAVA.");
+		javaDir.setRequired(false);
+		options.addOption(javaDir);
+		
 		Option help = new Option("h", "help", true, "Print help message and usage");
 		help.setRequired(false);
 		options.addOption(help);
@@ -47,7 +97,7 @@ public class Dispatcher {
 			cmd = parser.parse(options, args);
 		}catch(ParseException e) {
 			System.out.println(e.getMessage());
-			formatter.printHelp("java commandpcr/CommandMain -i () -o () -p () [-t ()] [-m ()]\n"
+			formatter.printHelp("java commandpcr/CommandMain -i () -o () -p () [-t ()] [-m ()] [-s ()] [-l ()] [-n] [-j] [-b ()] [-a ()] [-r] [-d ()] [-c ()] [-B ()] [-L ()] [-J ()]\n"
 					+ "\tCan be used either in GUI or commandline formats"
 					+ "\t- GUI can be obtained by running without arguments"
 					+ "\t- commandline is used by providing at least -i -o and -p arguments", options);
@@ -59,7 +109,8 @@ public class Dispatcher {
 			try{
 				File inputFile = new File(cmd.getOptionValue("input"));
 				File outDir = new File(cmd.getOptionValue("output"));
-				File primerFile = new File(cmd.getOptionValue("primers"));
+				String[] primerFiles = cmd.getOptionValue("primers").split(",");
+				File primerFile = new File(primerFiles[0]);
 				int threads = Runtime.getRuntime().availableProcessors();
 				int mismatches = 0;
 				if(cmd.getOptionValue("threads") != null) {
@@ -70,11 +121,81 @@ public class Dispatcher {
 				}
 				
 				CommandMain main = new CommandMain(inputFile, outDir, primerFile, threads, mismatches);
+				if(cmd.getOptionValue("search") != null) {
+					if(!cmd.getOptionValue("search").equals("blast") && !cmd.getOptionValue("search").equals("native")) {
+						System.out.println("The search engine must be either blast or native");
+						System.exit(-1);
+					}
+					main.setSearchEngine(cmd.getOptionValue("search"));
+				}
+				if(cmd.getOptionValue("length") != null) {
+					main.setMaxAmpliconLength(Integer.parseInt(cmd.getOptionValue("length")));
+				}
+				if(cmd.hasOption("nodetail")) {
+					main.setWriteDetailed(false);
+				}
+				if(cmd.hasOption("inprocess")) {
+					main.setInProcess(true);
+				}
+				if(cmd.hasOption("readpairs")) {
+					main.setReadPairs(true);
+				}
+				if(cmd.getOptionValue("bait") != null) {
+					if(!cmd.getOptionValue("bait").equals("bbduk") && !cmd.getOptionValue("bait").equals("native")) {
+						System.out.println("The bait engine must be either bbduk or native");
+						System.exit(-1);
+					}
+					main.setBaitEngine(cmd.getOptionValue("bait"));
+				}
+				if(cmd.getOptionValue("assembler") != null) {
+					if(!cmd.getOptionValue("assembler").equals("tadpole") && !cmd.getOptionValue("assembler").equals("targeted")) {
+						System.out.println("The assembler must be either tadpole or targeted");
+						System.exit(-1);
+					}
+					main.setAssembler(cmd.getOptionValue("assembler"));
+				}
+				if(primerFiles.length > 1) {
+					ArrayList<File> panelFiles = new ArrayList<File>();
+					HashSet<String> panels = new HashSet<String>();
+					for(String file : primerFiles) {
+						File panelFile = new File(file);
+						if(!panels.add(panelFile.getName().split("\\.")[0])) {
+							System.out.println("Each primer file must have a different name, as the name is used for its report");
+							System.exit(-1);
+						}
+						panelFiles.add(panelFile);
+					}
+					main.setPanelFiles(panelFiles);
+				}
+				if(cmd.getOptionValue("orientation") != null) {
+					String value = cmd.getOptionValue("orientation");
+					if(!value.equals("primers") && !value.equals("genome") && !value.equals("auto")) {
+						System.out.println("The orientation must be either primers, genome or auto");
+						System.exit(-1);
+					}
+					main.setOrientation(value);
+				}
+				if(cmd.getOptionValue("cache") != null) {
+					main.setCacheDir(new File(cmd.getOptionValue("cache")));
+				}
+				if(cmd.getOptionValue("bbtools") != null) {
+					main.setBBToolsLocation(new File(cmd.getOptionValue("bbtools")));
+				}
+				if(cmd.getOptionValue("blast") != null) {
+					main.setBLASTLocation(new File(cmd.getOptionValue("blast")));
+				}
+				if(cmd.getOptionValue("java") != null) {
+					main.setJavaLocation(new File(cmd.getOptionValue("java")));
+				}
 				main.run();
+				if(!main.getFailedSamples().isEmpty()) {
+					System.out.println("Samples that failed: " + String.join(", ", main.getFailedSamples()));
+					System.exit(-1);
+				}
 			}catch(NullPointerException e) {
 				e.printStackTrace();
 				System.out.println("If using the program with arguments from commandline or terminal, you must provide at least i, o, and p arguments");
-				formatter.printHelp("java commandpcr/CommandMain -i () -o () -p () [-t ()] [-m ()]\n"
+				formatter.printHelp("java commandpcr/CommandMain -i () -o () -p () [-t ()] [-m ()] [-s ()] [-l ()] [-n] [-j] [-b ()] [-a ()] [-r] [-d ()] [-c ()] [-B ()] [-L ()] [-J ()]\n"
 						+ "\tCan be used either in GUI or commandline formats"
 						+ "\t- GUI can be obtained by running without arguments"
 						+ "\t- commandline is used by providing at least -i -o and -p arguments", options);
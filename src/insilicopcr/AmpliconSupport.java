@@ -0,0 +1,125 @@
+package insilicopcr;
+
+import java.util.Arrays;
+
+// The read pairs of a sample that show the forward and reverse primers of one gene laid out as a product, found without
+// assembling the reads. A product size is exact when both primers are on one read or the mates overlap, otherwise it is only
+// known to be at least the length the two mates span.
+public class AmpliconSupport {
+
+	private String gene;
+	private int pairs = 0;
+	private int[] sizes = new int[8];
+	private int sizeCount = 0;
+	private int lowerBound = 0;
+	private String forwardPrimer;
+	private String reversePrimer;
+	private int forwardMismatch = Integer.MAX_VALUE;
+	private int reverseMismatch = Integer.MAX_VALUE;
+	private String probe;
+	private int probeLength;
+	private int probeMismatch = Integer.MAX_VALUE;
+
+	public AmpliconSupport(String gene) {
+		this.gene = gene;
+	}
+
+	// One more supporting pair. The primers kept for the report are those with the fewest mismatches
+	public void addPair(int size, boolean exact, String forwardPrimer, int forwardMismatch, String reversePrimer, int reverseMismatch) {
+		pairs++;
+		if(exact) {
+			if(sizeCount == sizes.length) {
+				sizes = Arrays.copyOf(sizes, sizeCount * 2);
+			}
+			sizes[sizeCount++] = size;
+		}else {
+			lowerBound = Math.max(lowerBound, size);
+		}
+		if(forwardMismatch < this.forwardMismatch) {
+			this.forwardPrimer = forwardPrimer;
+			this.forwardMismatch = forwardMismatch;
+		}
+		if(reverseMismatch < this.reverseMismatch) {
+			this.reversePrimer = reversePrimer;
+			this.reverseMismatch = reverseMismatch;
+		}
+	}
+
+	public void addProbe(String probe, int probeLength, int probeMismatch) {
+		if(probeMismatch < this.probeMismatch) {
+			this.probe = probe;
+			this.probeLength = probeLength;
+			this.probeMismatch = probeMismatch;
+		}
+	}
+
+	// Fold in the pairs another thread counted for the same gene
+	public void merge(AmpliconSupport other) {
+		pairs += other.pairs;
+		for(int i = 0; i < other.sizeCount; i++) {
+			if(sizeCount == sizes.length) {
+				sizes = Arrays.copyOf(sizes, sizeCount * 2);
+			}
+			sizes[sizeCount++] = other.sizes[i];
+		}
+		lowerBound = Math.max(lowerBound, other.lowerBound);
+		if(other.forwardMismatch < forwardMismatch) {
+			forwardPrimer = other.forwardPrimer;
+			forwardMismatch = other.forwardMismatch;
+		}
+		if(other.reverseMismatch < reverseMismatch) {
+			reversePrimer = other.reversePrimer;
+			reverseMismatch = other.reverseMismatch;
+		}
+		if(other.probe != null) {
+			addProbe(other.probe, other.probeLength, other.probeMismatch);
+		}
+	}
+
+	public String getGene() {
+		return this.gene;
+	}
+
+	public int getPairs() {
+		return this.pairs;
+	}
+
+	// The median of the exact sizes, or the largest lower bound as ">=N" when no pair gave an exact size
+	public String getEstimatedSize() {
+		if(sizeCount == 0) {
+			return ">=" + lowerBound;
+		}
+		int[] sorted = Arrays.copyOf(sizes, sizeCount);
+		Arrays.sort(sorted);
+		return Integer.toString(sorted[sizeCount / 2]);
+	}
+
+	public String getForwardPrimer() {
+		return this.forwardPrimer;
+	}
+
+	public String getReversePrimer() {
+		return this.reversePrimer;
+	}
+
+	public int getForwardMismatch() {
+		return this.forwardMismatch;
+	}
+
+	public int getReverseMismatch() {
+		return this.reverseMismatch;
+	}
+
+	// Null if no supporting pair showed a probe of the gene
+	public String getProbe() {
+		return this.probe;
+	}
+
+	public int getProbeLength() {
+		return this.probeLength;
+	}
+
+	public int getProbeMismatch() {
+		return this.probeMismatch;
+	}
+}
@@ -10,8 +10,15 @@ public class BlastResult {
 	private int end;
 	private int length;
 	private String seq;
+	private boolean minusStrand;
 
 	public BlastResult(String name, String queryID, String subjectID, int mismatch, int start, int end, int length, String seq) {
+		this(name, queryID, subjectID, mismatch, start, end, length, seq, false);
+	}
+
+	// minusStrand is set when the primer binds the reverse complement of the contig, i.e. sstart > send in BLAST output
+	public BlastResult(String name, String queryID, String subjectID, int mismatch, int start, int end, int length, String seq,
+			boolean minusStrand) {
 		this.name = name;
 		this.queryID = queryID;
 		this.subjectID = subjectID;
@@ -20,6 +27,7 @@ public class BlastResult {
 		this.end = end;
 		this.length = length;
 		this.seq = seq;
+		this.minusStrand = minusStrand;
 	}
 	
 	public String getName() {
@@ -53,4 +61,8 @@ public class BlastResult {
 	public String getSeq() {
 		return this.seq;
 	}
+	
+	public boolean isMinusStrand() {
+		return this.minusStrand;
+	}
 }
@@ -0,0 +1,188 @@
+package insilicopcr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Properties;
+
+// Where BBTools, BLAST and the bundled Java runtime are. Walking the install tree for them takes seconds on a network mount,
+// so the locations found are kept in a small properties manifest and trusted on the next start while the install root is the
+// same and the marker file of each tool, tadpole.sh, makeblastdb or java, is still there with the same modification time.
+// A location given on the command line or in the environment is used as it is, and the tree is only walked for tools left
+// without a location.
+public class Dependencies {
+
+	public static final String bbtools = "bbtools";
+	public static final String blast = "blast";
+	public static final String java = "java";
+	private static final String[] tools = {bbtools, blast, java};
+	private static final String manifestName = "InSilicoPCR_dependencies.properties";
+	private static final boolean windows = System.getProperties().getProperty("os.name").contains("Windows");
+
+	private Path root;
+	private HashMap<String, File> locations = new HashMap<String, File>();
+
+	public Dependencies(Path root) {
+		this.root = root;
+	}
+
+	// A directory given by the user for one of the tools, used without checking the manifest or walking the tree
+	public void setOverride(String tool, File location) {
+		if(location != null) {
+			locations.put(tool, location.getAbsoluteFile());
+		}
+	}
+
+	// INSILICOPCR_BBTOOLS, INSILICOPCR_BLAST and INSILICOPCR_JAVA, for any tool not already given
+	public void readEnvironment() {
+		for(String tool : tools) {
+			String value = System.getenv("INSILICOPCR_" + tool.toUpperCase());
+			if(value != null && !value.isEmpty() && !locations.containsKey(tool)) {
+				setOverride(tool, new File(value));
+			}
+		}
+	}
+
+	// Fill in every tool without a location from the manifest, or failing that by walking the install tree, and rewrite the
+	// manifest if anything was found by walking. Returns true if the tree was walked
+	public boolean resolve() {
+		File manifestFile = manifestFile();
+		Properties manifest = new Properties();
+		if(manifestFile.exists()) {
+			try(InputStream in = new FileInputStream(manifestFile)){
+				manifest.load(in);
+			}catch(IOException e) {
+				manifest.clear();
+			}
+		}
+		if(!root.toString().equals(manifest.getProperty("root"))) {
+			manifest.clear();
+			manifest.setProperty("root", root.toString());
+		}
+		boolean walked = false;
+		boolean changed = false;
+		for(String tool : tools) {
+			if(locations.containsKey(tool)) {
+				continue;
+			}
+			File cached = fromManifest(manifest, tool);
+			if(cached != null) {
+				locations.put(tool, cached);
+				continue;
+			}
+			walked = true;
+			File found = find(tool);
+			if(found != null) {
+				locations.put(tool, found);
+				File marker = marker(tool, found);
+				manifest.setProperty(tool, found.getAbsolutePath());
+				manifest.setProperty(tool + ".mtime", Long.toString(marker.lastModified()));
+				changed = true;
+			}
+		}
+		if(changed) {
+			save(manifest, manifestFile);
+		}
+		return walked;
+	}
+
+	public File getLocation(String tool) {
+		return locations.get(tool);
+	}
+
+	// Next to the install when that is writable, in the home directory when it is not. The manifest records the install root,
+	// so one left in the home directory by another install is never trusted
+	private File manifestFile() {
+		File dir = root.toFile();
+		if(!dir.isDirectory()) {
+			dir = dir.getParentFile();
+		}
+		if(dir != null && Files.isWritable(dir.toPath())) {
+			return new File(dir, manifestName);
+		}
+		return new File(System.getProperty("user.home"), "." + manifestName);
+	}
+
+	private static File marker(String tool, File location) {
+		if(tool.equals(bbtools)) {
+			return new File(location, "tadpole.sh");
+		}else if(tool.equals(blast)) {
+			return new File(location, windows ? "makeblastdb.exe" : "makeblastdb");
+		}else {
+			return new File(location, windows ? "java.exe" : "java");
+		}
+	}
+
+	private static File fromManifest(Properties manifest, String tool) {
+		String path = manifest.getProperty(tool);
+		String mtime = manifest.getProperty(tool + ".mtime");
+		if(path == null || mtime == null) {
+			return null;
+		}
+		File location = new File(path);
+		File marker = marker(tool, location);
+		if(!marker.isFile() || !Long.toString(marker.lastModified()).equals(mtime)) {
+			return null;
+		}
+		return location;
+	}
+
+	// Written beside the manifest and moved over it, so a run that dies part way never leaves half a manifest behind
+	private static void save(Properties manifest, File manifestFile) {
+		File temp = new File(manifestFile.getAbsolutePath() + ".tmp");
+		try(OutputStream out = new FileOutputStream(temp)){
+			manifest.store(out, "InSilicoPCR dependency locations");
+		}catch(IOException e) {
+			temp.delete();
+			return;
+		}
+		try {
+			Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			try {
+				Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}catch(IOException e2) {
+				temp.delete();
+			}
+		}
+	}
+
+	// The full walk of the install tree for one tool
+	private File find(String tool) {
+		File location = null;
+		if(tool.equals(bbtools)) {
+			Find.Finder finder = new Find.Finder("**bbmap", root);
+			for(Path path : finder.run()) {
+				File directory = path.toFile();
+				if(directory.isDirectory() && marker(tool, directory).exists()) {
+					location = directory;
+				}
+			}
+		}else if(tool.equals(blast)) {
+			Find.Finder finder = new Find.Finder(windows ? "**makeblastdb.exe" : "**makeblastdb", root);
+			for(Path path : finder.run()) {
+				location = path.toFile().getParentFile();
+			}
+		}else {
+			Find.Finder finder = new Find.Finder(windows ? "**InSilicoPCR_windows_java_runtime" : "**InSilicoPCR_linux_java_runtime", root);
+			for(Path path : finder.run()) {
+				File javapath = path.toFile();
+				if(javapath.isDirectory()) {
+					for(File item : javapath.listFiles()) {
+						if(item.isDirectory() && marker(tool, item).exists()) {
+							location = item;
+						}
+					}
+				}
+			}
+		}
+		return location == null ? null : location.getAbsoluteFile();
+	}
+}
@@ -0,0 +1,170 @@
+package insilicopcr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+// Memory mapped index of the headers in one or more fasta files. Only the byte offset of each header is recorded while
+// scanning, along with a hash of its contig ID, so no Strings are made until a description is actually asked for. IDs are
+// compared and descriptions decoded as UTF-8 bytes, so headers with non-ASCII names read as they did through a Reader.
+public class FastaIndex {
+
+	private static final int chunkBits = 30;
+	private static final long chunkMask = (1L << chunkBits) - 1;
+
+	private MappedByteBuffer[][] files;
+	private int[] headerFiles = new int[16];
+	private long[] headerOffsets = new long[16];
+	private int[] headerHashes = new int[16];
+	private int headerCount = 0;
+	private int[] table;
+
+	public FastaIndex(List<String> fileNames) throws IOException {
+		files = new MappedByteBuffer[fileNames.size()][];
+		for(int f = 0; f < fileNames.size(); f++) {
+			try(FileChannel channel = FileChannel.open(Paths.get(fileNames.get(f)), StandardOpenOption.READ)){
+				long size = channel.size();
+				int chunks = (int)((size + chunkMask) >>> chunkBits);
+				files[f] = new MappedByteBuffer[chunks];
+				for(int c = 0; c < chunks; c++) {
+					long start = (long)c << chunkBits;
+					files[f][c] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkMask + 1, size - start));
+				}
+			}
+			scanHeaders(f);
+		}
+		buildTable();
+	}
+
+	// Record every '>' that starts a line, hashing the ID that follows it up to the first whitespace
+	private void scanHeaders(int f) {
+		boolean lineStart = true;
+		boolean inID = false;
+		int hash = 0;
+		for(int c = 0; c < files[f].length; c++) {
+			MappedByteBuffer chunk = files[f][c];
+			int limit = chunk.limit();
+			for(int i = 0; i < limit; i++) {
+				byte b = chunk.get(i);
+				if(inID) {
+					if(b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+						headerHashes[headerCount - 1] = hash;
+						inID = false;
+					}else {
+						hash = 31 * hash + b;
+					}
+				}else if(b == '>' && lineStart) {
+					if(headerCount == headerOffsets.length) {
+						headerFiles = Arrays.copyOf(headerFiles, headerCount * 2);
+						headerOffsets = Arrays.copyOf(headerOffsets, headerCount * 2);
+						headerHashes = Arrays.copyOf(headerHashes, headerCount * 2);
+					}
+					headerFiles[headerCount] = f;
+					headerOffsets[headerCount] = ((long)c << chunkBits) + i;
+					headerCount++;
+					inID = true;
+					hash = 0;
+				}
+				lineStart = b == '\n';
+			}
+		}
+		if(inID) {
+			headerHashes[headerCount - 1] = hash;
+		}
+	}
+
+	// Open addressing table of header indices, sized to stay at most half full
+	private void buildTable() {
+		int size = Integer.highestOneBit(Math.max(headerCount, 1) * 2) * 2;
+		table = new int[size];
+		Arrays.fill(table, -1);
+		for(int h = 0; h < headerCount; h++) {
+			int slot = headerHashes[h] & (size - 1);
+			while(table[slot] != -1) {
+				slot = (slot + 1) & (size - 1);
+			}
+			table[slot] = h;
+		}
+	}
+
+	private byte get(int f, long offset) {
+		return files[f][(int)(offset >>> chunkBits)].get((int)(offset & chunkMask));
+	}
+
+	private long fileSize(int f) {
+		MappedByteBuffer[] chunks = files[f];
+		if(chunks.length == 0) {
+			return 0;
+		}
+		return ((long)(chunks.length - 1) << chunkBits) + chunks[chunks.length - 1].limit();
+	}
+
+	// Index of the header for the contig ID as UTF-8 bytes, or -1 if the contig is not in these files
+	private int findHeader(byte[] id) {
+		int hash = 0;
+		for(int i = 0; i < id.length; i++) {
+			hash = 31 * hash + id[i];
+		}
+		int slot = hash & (table.length - 1);
+		while(table[slot] != -1) {
+			int h = table[slot];
+			if(headerHashes[h] == hash && idEquals(h, id)) {
+				return h;
+			}
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return -1;
+	}
+
+	private boolean idEquals(int h, byte[] id) {
+		int f = headerFiles[h];
+		long offset = headerOffsets[h] + 1;
+		long end = fileSize(f);
+		for(int i = 0; i < id.length; i++) {
+			if(offset + i >= end || get(f, offset + i) != id[i]) {
+				return false;
+			}
+		}
+		if(offset + id.length == end) {
+			return true;
+		}
+		byte next = get(f, offset + id.length);
+		return next == ' ' || next == '\t' || next == '\n' || next == '\r';
+	}
+
+	public boolean contains(String contig) {
+		return findHeader(contig.getBytes(StandardCharsets.UTF_8)) != -1;
+	}
+
+	// The rest of the header line after the contig ID, or an empty String if there is none
+	public String getDescription(String contig) {
+		byte[] id = contig.getBytes(StandardCharsets.UTF_8);
+		int h = findHeader(id);
+		if(h == -1) {
+			return "";
+		}
+		int f = headerFiles[h];
+		long offset = headerOffsets[h] + 1 + id.length;
+		long end = fileSize(f);
+		ByteArrayOutputStream description = new ByteArrayOutputStream();
+		while(offset < end) {
+			byte b = get(f, offset);
+			if(b == '\n' || b == '\r') {
+				break;
+			}
+			description.write(b);
+			offset++;
+		}
+		return new String(description.toByteArray(), StandardCharsets.UTF_8).trim();
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+}
@@ -440,7 +440,7 @@ public class MainRun extends Application {
 		consolidatedDir.mkdirs();
 	}
 	
-	// Find dependencies
+	// Find dependencies, from the environment, the dependency manifest, or as a last resort by walking the install tree
 	public void findDependencies() {
 		String codeLocation = Dispatcher.class.getProtectionDomain().getCodeSource().getLocation().getPath();
 		String codeParent = codeLocation;
@@ -451,56 +451,17 @@ public class MainRun extends Application {
 		}
 		Path dir = Paths.get(codeParent);
 //		Path dir = new File("C:\\Users\\ChmaraJ\\Desktop").toPath();
-		Find.Finder finder = new Find.Finder("**bbmap", dir);
-		for(Path path: finder.run()) {
-			File directory = path.toFile();
-			for(File file : directory.listFiles()) {
-				if(file.getName().contains("tadpole.sh")) {
-					BBToolsLocation = path.toFile();
-				}
-			}
-		}
-		
-		Find.Finder finder2;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder2 = new Find.Finder("**makeblastdb.exe", dir);
-		}else {
-			finder2 = new Find.Finder("**makeblastdb", dir);
-		}
-		for(Path path : finder2.run()) {
-			File blastdbpath = path.toFile();
-			BLASTLocation = blastdbpath.getParentFile();
+		Dependencies dependencies = new Dependencies(dir);
+		dependencies.readEnvironment();
+		if(dependencies.resolve()) {
+			Methods.logMessage(outputField, "Searched the install directory for dependencies");
 		}
+		BBToolsLocation = dependencies.getLocation(Dependencies.bbtools);
+		BLASTLocation = dependencies.getLocation(Dependencies.blast);
+		JavaLocation = dependencies.getLocation(Dependencies.java);
 		if(BBToolsLocation == null || BLASTLocation == null) {
 			Methods.logMessage(outputField, "BBToolsLocation or BLASTLocation is null");
 		}
-		
-		Find.Finder finder3;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder3 = new Find.Finder("**InSilicoPCR_windows_java_runtime", dir);
-		}else {
-			finder3 = new Find.Finder("**InSilicoPCR_linux_java_runtime", dir);
-		}
-		for(Path path : finder3.run()) {
-			File javapath = path.toFile();
-			if(javapath.isDirectory()) {
-				for(File item : javapath.listFiles()) {
-					if(item.isDirectory()) {
-						for(File item2 : item.listFiles()) {
-							if(System.getProperties().getProperty("os.name").contains("Windows")) {
-								if(item2.getName().equals("java.exe")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}else {
-								if(item2.getName().equals("java")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}
-						}
-					}
-				}
-			}
-		}
 		if(System.getProperties().getProperty("os.name").contains("Windows")) {
 			javaCall = JavaLocation.getAbsolutePath() + sep + "java.exe";
 		}else {
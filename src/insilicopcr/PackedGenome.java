@@ -0,0 +1,212 @@
+package insilicopcr;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// All the contigs of a sample packed at 2 bits per base (A=0, C=1, G=2, T=3) in an off-heap buffer. Bases are packed 32 to a
+// long, first base in the most significant bits. Anything other than A, C, G or T is stored as an A and listed as an exception,
+// so N runs and ambiguity codes still come back out as they went in. A contig table gives the name, offset and length of each
+// contig within the packed sequence.
+public class PackedGenome {
+
+	private ByteBuffer packed;
+	private long size = 0;
+	private ArrayList<String> contigNames = new ArrayList<String>();
+	private long[] contigOffsets = new long[16];
+	private int[] contigLengths = new int[16];
+	private long[] exceptionPositions = new long[16];
+	private byte[] exceptionBases = new byte[16];
+	private int exceptionCount = 0;
+
+	// Capacity is in bases, and must be known up front as the direct buffer cannot grow
+	public PackedGenome(long capacity) {
+		long words = (capacity + 31) / 32 + 1;
+		if(words * 8 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Genome of " + capacity + " bases is too large to pack into one buffer");
+		}
+		packed = ByteBuffer.allocateDirect((int)(words * 8)).order(ByteOrder.nativeOrder());
+	}
+
+	// Read one or more fasta files into a single packed genome. File size is an upper bound on the number of bases
+	public static PackedGenome readFasta(List<String> files) throws IOException {
+		long capacity = 0;
+		for(String file : files) {
+			capacity += new File(file).length();
+		}
+		PackedGenome genome = new PackedGenome(capacity);
+		byte[] buffer = new byte[1 << 16];
+		StringBuilder header = new StringBuilder();
+		for(String file : files) {
+			try(InputStream in = new BufferedInputStream(new FileInputStream(file))){
+				boolean inHeader = false;
+				boolean lineStart = true;
+				int read;
+				while((read = in.read(buffer)) > 0) {
+					for(int i = 0; i < read; i++) {
+						byte b = buffer[i];
+						if(inHeader) {
+							if(b == '\n') {
+								genome.addContig(header.toString().trim().split("\\s+")[0]);
+								header.setLength(0);
+								inHeader = false;
+								lineStart = true;
+							}else {
+								header.append((char)b);
+							}
+						}else if(b == '>' && lineStart) {
+							inHeader = true;
+						}else if(b == '\n' || b == '\r') {
+							lineStart = true;
+						}else if(b != ' ' && b != '\t') {
+							genome.appendBase(b);
+							lineStart = false;
+						}
+					}
+				}
+				// A header with no newline after it is still a contig, just an empty one
+				if(inHeader) {
+					genome.addContig(header.toString().trim().split("\\s+")[0]);
+					header.setLength(0);
+				}
+			}
+		}
+		return genome;
+	}
+
+	// Start a new contig, following bases are appended to it
+	public void addContig(String name) {
+		int index = contigNames.size();
+		if(index == contigOffsets.length) {
+			contigOffsets = Arrays.copyOf(contigOffsets, index * 2);
+			contigLengths = Arrays.copyOf(contigLengths, index * 2);
+		}
+		contigNames.add(name);
+		contigOffsets[index] = size;
+		contigLengths[index] = 0;
+	}
+
+	public void appendBase(byte base) {
+		if(contigNames.isEmpty()) {
+			// Sequence before any header, keep it under an empty name rather than lose it
+			addContig("");
+		}
+		int code;
+		switch(base) {
+		case 'A': case 'a':
+			code = 0;
+			break;
+		case 'C': case 'c':
+			code = 1;
+			break;
+		case 'G': case 'g':
+			code = 2;
+			break;
+		case 'T': case 't':
+			code = 3;
+			break;
+		default:
+			code = 0;
+			if(exceptionCount == exceptionPositions.length) {
+				exceptionPositions = Arrays.copyOf(exceptionPositions, exceptionCount * 2);
+				exceptionBases = Arrays.copyOf(exceptionBases, exceptionCount * 2);
+			}
+			exceptionPositions[exceptionCount] = size;
+			exceptionBases[exceptionCount] = (byte)Character.toUpperCase(base);
+			exceptionCount++;
+		}
+		int wordIndex = (int)(size >>> 5) * 8;
+		long word = packed.getLong(wordIndex);
+		word |= ((long)code) << (62 - 2 * (int)(size & 31));
+		packed.putLong(wordIndex, word);
+		size++;
+		contigLengths[contigNames.size() - 1]++;
+	}
+
+	public int getContigCount() {
+		return contigNames.size();
+	}
+
+	public String getContigName(int contig) {
+		return contigNames.get(contig);
+	}
+
+	public long getContigOffset(int contig) {
+		return contigOffsets[contig];
+	}
+
+	public int getContigLength(int contig) {
+		return contigLengths[contig];
+	}
+
+	// Total number of bases over all contigs
+	public long getSize() {
+		return size;
+	}
+
+	// Number of bytes held off heap for the packed bases
+	public long getPackedBytes() {
+		return packed.capacity();
+	}
+
+	// The 2 bit code at a position in the genome. Exceptions come back as 0, check isException for those
+	public int getCode(long position) {
+		long word = packed.getLong((int)(position >>> 5) * 8);
+		return (int)(word >>> (62 - 2 * (int)(position & 31))) & 3;
+	}
+
+	// The packed word holding positions 32 * index to 32 * index + 31
+	public long getWord(int index) {
+		return packed.getLong(index * 8);
+	}
+
+	// The 32 bases starting at the position as one packed long, first base in the most significant bits. Lanes past the end
+	// of the genome read as A
+	public long getWindow(long position) {
+		int index = (int)(position >>> 5);
+		int shift = 2 * (int)(position & 31);
+		long word = packed.getLong(index * 8) << shift;
+		if(shift != 0) {
+			word |= packed.getLong((index + 1) * 8) >>> (64 - shift);
+		}
+		return word;
+	}
+
+	// Index of the first exception at or after the position, or the exception count if there is none
+	public int nextException(long position) {
+		int index = Arrays.binarySearch(exceptionPositions, 0, exceptionCount, position);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	public int getExceptionCount() {
+		return exceptionCount;
+	}
+
+	public long getExceptionPosition(int index) {
+		return exceptionPositions[index];
+	}
+
+	public byte getExceptionBase(int index) {
+		return exceptionBases[index];
+	}
+
+	// Decode a stretch of one contig back into upper case bases
+	public String getSequence(int contig, int start, int length) {
+		long offset = contigOffsets[contig] + start;
+		char[] bases = new char[length];
+		for(int i = 0; i < length; i++) {
+			bases[i] = "ACGT".charAt(getCode(offset + i));
+		}
+		for(int e = nextException(offset); e < exceptionCount && exceptionPositions[e] < offset + length; e++) {
+			bases[(int)(exceptionPositions[e] - offset)] = (char)exceptionBases[e];
+		}
+		return new String(bases);
+	}
+}
@@ -10,7 +10,12 @@ public class Sample {
 	private String fileType;
 	private HashMap<String, ArrayList<BlastResult>> blastResults = new HashMap<String, ArrayList<BlastResult>>();
 	private String assemblyFile;
+	private String baitedFile;
+	private HashMap<String, AmpliconSupport> ampliconSupport = new HashMap<String, AmpliconSupport>();
 	private HashMap<String, String> contigDict = new HashMap<String, String>();
+	private PackedGenome genome;
+	private FastaIndex contigIndex;
+	private boolean failed = false;
 
 	public Sample() {
 		
@@ -62,7 +67,16 @@ public class Sample {
 		temp.add(results);
 		this.blastResults.put(key, temp);
 	}
-	
+
+	// Adds to an existing list of results for the primer, or starts a new one. Safe to call from several search threads
+	public synchronized void putBlastResult(String key, BlastResult results) {
+		if(this.blastResults.containsKey(key)) {
+			addBlastResult(key, results);
+		}else {
+			addNewBlastResult(key, results);
+		}
+	}
+
 	public String getAssemblyFile() {
 		return this.assemblyFile;
 	}
@@ -71,6 +85,24 @@ public class Sample {
 		this.assemblyFile = assemblyFile;
 	}
 	
+	// The reads of both rounds of baiting, to be assembled. Null until baiting has run
+	public String getBaitedFile() {
+		return this.baitedFile;
+	}
+	
+	public void setBaitedFile(String baitedFile) {
+		this.baitedFile = baitedFile;
+	}
+	
+	// Genes found straight from the read pairs, when the sample was not assembled
+	public HashMap<String, AmpliconSupport> getAmpliconSupport() {
+		return this.ampliconSupport;
+	}
+	
+	public void setAmpliconSupport(HashMap<String, AmpliconSupport> ampliconSupport) {
+		this.ampliconSupport = ampliconSupport;
+	}
+	
 	public void addContig(String acc, String desc) {
 		this.contigDict.put(acc, desc);
 	}
@@ -78,4 +110,31 @@ public class Sample {
 	public HashMap<String, String> getContigDict(){
 		return this.contigDict;
 	}
+	
+	// The packed sequence of the sample, only set when the sample has been read for the native search
+	public PackedGenome getGenome() {
+		return this.genome;
+	}
+	
+	public void setGenome(PackedGenome genome) {
+		this.genome = genome;
+	}
+	
+	// Header offsets of the sample's fasta or assembly, used to look up contig descriptions only when they are needed
+	public FastaIndex getContigIndex() {
+		return this.contigIndex;
+	}
+	
+	public void setContigIndex(FastaIndex contigIndex) {
+		this.contigIndex = contigIndex;
+	}
+	
+	// Whether one of the sample's stages failed, so its hits cannot be trusted to be complete
+	public boolean isFailed() {
+		return this.failed;
+	}
+	
+	public void setFailed(boolean failed) {
+		this.failed = failed;
+	}
 }